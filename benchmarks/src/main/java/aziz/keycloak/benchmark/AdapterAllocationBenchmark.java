@@ -0,0 +1,117 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.adapter.ExternalUserAdapter;
+import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.domain.ExternalUserRoleEntity;
+import aziz.keycloak.mapping.RealmRoleResolver;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation cost of the adapter calls token mappers make: each {@code mapToken} reads the attributes and role
+ * mappings of one user several times, as a token with a few attribute and role mappers does. Keycloak is stubbed with
+ * plain proxies rather than mocks, whose invocation recording would dominate the allocations. Run with
+ * {@code -prof gc} and compare {@code gc.alloc.rate.norm}; {@code federatedAttributes} is the number of attributes
+ * the user has in Keycloak's federated storage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdapterAllocationBenchmark {
+
+    // attribute and role mapper calls per token
+    private static final int MAPPER_CALLS = 4;
+
+    @Param({"0", "2"})
+    public int federatedAttributes;
+
+    private ExternalUserStoreFixture fixture;
+
+    private KeycloakSession session;
+
+    private ExternalUserEntity entity;
+
+    private RealmRoleResolver realmRoleResolver;
+
+    private ExternalUserAdapter adapter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = new ExternalUserStoreFixture(1);
+        UserFederatedStorageProvider federatedStorage = (UserFederatedStorageProvider) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{UserFederatedStorageProvider.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("getAttributes")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    // federated storage reads a fresh map on every call
+                    MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
+                    for (int i = 0; i < federatedAttributes; i++) {
+                        attributes.add("attribute_" + i, "value_" + i);
+                    }
+                    return attributes;
+                });
+        session = (KeycloakSession) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{KeycloakSession.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getProvider") && args[0] == UserFederatedStorageProvider.class) {
+                        return federatedStorage;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        entity = new ExternalUserEntity("3f1c3f0e-0a4e-4a53-9a5e-8f6f2b3a1c01", ExternalUserStoreFixture.email(1),
+                ExternalUserStoreFixture.username(1), new ExternalUserRoleEntity("role", "customer"),
+                "First_1", "Last_1", System.currentTimeMillis());
+        realmRoleResolver = new RealmRoleResolver(fixture.roleMappingIndex());
+        adapter = newAdapter();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private ExternalUserAdapter newAdapter() {
+        return new ExternalUserAdapter(session, fixture.realm(), fixture.model(), entity, realmRoleResolver);
+    }
+
+    private static void mapToken(ExternalUserAdapter user, Blackhole blackhole) {
+        for (int i = 0; i < MAPPER_CALLS; i++) {
+            blackhole.consume(user.getAttributes());
+            blackhole.consume(user.getRoleMappingsInternal());
+        }
+        blackhole.consume(user.getFirstAttribute(UserModel.EMAIL));
+    }
+
+    // the adapter of a user whose tokens are issued within one session
+    @Benchmark
+    public void mapToken(Blackhole blackhole) {
+        mapToken(adapter, blackhole);
+    }
+
+    // the first token of a session, including the adapter and its memoized views
+    @Benchmark
+    public void newAdapterAndMapToken(Blackhole blackhole) {
+        mapToken(newAdapter(), blackhole);
+    }
+}
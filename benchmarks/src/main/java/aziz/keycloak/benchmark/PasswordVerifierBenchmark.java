@@ -0,0 +1,59 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.credential.BCryptPasswordVerifier;
+import aziz.keycloak.credential.PasswordVerifier;
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the provider's bcrypt verifier with jbcrypt across cost factors.
+ * Run with {@code -prof gc} to compare allocation per verification.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordVerifierBenchmark {
+
+    @Param({"4", "6", "8", "10", "12"})
+    public int cost;
+
+    private final PasswordVerifier verifier = new BCryptPasswordVerifier();
+
+    private String password;
+
+    private String hash;
+
+    @Setup
+    public void setup() {
+        password = "customer";
+        hash = BCrypt.hashpw(password, BCrypt.gensalt(cost));
+        if (!verifier.verify(password, hash) || !BCrypt.checkpw(password, hash)) {
+            throw new IllegalStateException("Verifiers disagree on " + hash);
+        }
+    }
+
+    @Benchmark
+    public boolean jbcrypt() {
+        return BCrypt.checkpw(password, hash);
+    }
+
+    @Benchmark
+    public boolean bcryptPasswordVerifier() {
+        return verifier.verify(password, hash);
+    }
+}
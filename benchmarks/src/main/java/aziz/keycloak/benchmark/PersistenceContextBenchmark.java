@@ -0,0 +1,63 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.provider.ExternalDBUserStorageProvider;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory cost of a session's persistence context: each operation opens a provider, loads a page of users the way
+ * the admin console's user list does and closes it. With {@code readOnly=false} Hibernate keeps a snapshot of
+ * every loaded user for dirty checking. Run with {@code -prof gc} and compare {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceContextBenchmark {
+
+    @Param({"true", "false"})
+    public boolean readOnly;
+
+    @Param({"100"})
+    public int pageSize;
+
+    private ExternalUserStoreFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = new ExternalUserStoreFixture(10000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public List<UserModel> loadPage() {
+        ExternalDBUserStorageProvider provider = fixture.createProvider(readOnly);
+        try {
+            return provider.searchForUserStream(fixture.realm(), Map.of(UserModel.SEARCH, "*"), 0, pageSize).toList();
+        } finally {
+            provider.close();
+        }
+    }
+}
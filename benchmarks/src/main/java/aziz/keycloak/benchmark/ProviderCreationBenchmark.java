@@ -0,0 +1,138 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.mapping.RoleMappingIndex;
+import aziz.keycloak.metrics.ProviderMetrics;
+import aziz.keycloak.provider.ExternalDBUserStorageProvider;
+import aziz.keycloak.search.UserSearchQuery;
+import aziz.keycloak.provider.ExternalDBUserStorageProviderFactory;
+import aziz.keycloak.provider.ProviderConfig;
+import aziz.keycloak.provider.ProviderConfigUtil;
+import jakarta.persistence.EntityManager;
+import org.hibernate.Session;
+import org.keycloak.Config;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.RoleModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Per-session provider creation cost: {@code parseConfigurationPerSession} repeats what the factory did before
+ * parsed configuration was cached per component, {@code factoryCreate} is the current factory path.
+ * Run with {@code -prof gc} to compare allocation per session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProviderCreationBenchmark {
+
+    @Param({"4", "32"})
+    public int mappedRoles;
+
+    private ExternalDBUserStorageProviderFactory factory;
+
+    private KeycloakSession session;
+
+    private RealmModel realm;
+
+    private ComponentModel model;
+
+    private EntityManager entityManager;
+
+    @Setup
+    public void setup() {
+        realm = mock(RealmModel.class);
+        StringBuilder roleMappings = new StringBuilder("[");
+        for (int i = 0; i < mappedRoles; i++) {
+            String realmRoleName = "realm_role_" + i;
+            RoleModel realmRole = mock(RoleModel.class);
+            when(realmRole.getId()).thenReturn(UUID.randomUUID().toString());
+            when(realm.getRole(realmRoleName)).thenReturn(realmRole);
+            roleMappings.append(i == 0 ? "" : ",")
+                    .append("{\"key\":\"external_role_").append(i).append("\",\"value\":\"").append(realmRoleName).append("\"}");
+        }
+        roleMappings.append(']');
+
+        model = new ComponentModel();
+        model.setId(UUID.randomUUID().toString());
+        model.setParentId(UUID.randomUUID().toString());
+        model.setProviderId(ExternalDBUserStorageProviderFactory.PROVIDER_ID);
+        model.put(ExternalDBUserStorageProviderFactory.PERSISTENCE_UNIT_PROPERTY, "user-store");
+        model.put(ExternalDBUserStorageProviderFactory.ROLE_MAPPINGS_PROPERTY, roleMappings.toString());
+
+        entityManager = mock(EntityManager.class);
+        when(entityManager.unwrap(Session.class)).thenReturn(mock(Session.class));
+        JpaConnectionProvider connectionProvider = mock(JpaConnectionProvider.class);
+        when(connectionProvider.getEntityManager()).thenReturn(entityManager);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(realms.getRealm(anyString())).thenReturn(realm);
+        session = mock(KeycloakSession.class);
+        when(session.getProvider(JpaConnectionProvider.class, "user-store")).thenReturn(connectionProvider);
+        when(session.realms()).thenReturn(realms);
+
+        // every SPI option falls back to its default
+        Config.Scope config = mock(Config.Scope.class, invocation ->
+                invocation.getArguments().length > 1 ? invocation.getArgument(1) : null);
+        factory = new ExternalDBUserStorageProviderFactory();
+        factory.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Benchmark
+    public ExternalDBUserStorageProvider parseConfigurationPerSession() {
+        return new ExternalDBUserStorageProvider(
+                session,
+                model,
+                session.getProvider(JpaConnectionProvider.class, model.get(ExternalDBUserStorageProviderFactory.PERSISTENCE_UNIT_PROPERTY))
+                        .getEntityManager(),
+                RoleMappingIndex.compile(
+                        ProviderConfigUtil.getConfigMap(model, ExternalDBUserStorageProviderFactory.ROLE_MAPPINGS_PROPERTY),
+                        session.realms().getRealm(model.getParentId())),
+                null,
+                null,
+                null,
+                null,
+                UserSearchQuery.SearchMode.TRIGRAM,
+                ProviderConfig.CountMode.EXACT,
+                null,
+                ProviderMetrics.disabled(),
+                null,
+                null,
+                null,
+                null,
+                ProviderConfig.PasswordCaching.USER_CACHE,
+                null);
+    }
+
+    @Benchmark
+    public ExternalDBUserStorageProvider factoryCreate() {
+        return factory.create(session, model);
+    }
+}
@@ -0,0 +1,93 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.testing.ExternalUserStoreFixture;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a single external store with the same users spread across several in-process shards. Lookups by username
+ * and id reach one shard, lookups by email, searches and counts query every shard in parallel. That the sharded
+ * provider finds every user and merges pages in order is tested by ExternalDBUserStorageProviderShardTest.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardFanOutBenchmark {
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"10000"})
+    public int userCount;
+
+    @Param({"20"})
+    public int pageSize;
+
+    private ExternalUserStoreFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = new ExternalUserStoreFixture(userCount, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private int randomIndex() {
+        return ThreadLocalRandom.current().nextInt(userCount);
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername() {
+        String username = ExternalUserStoreFixture.username(randomIndex());
+        return fixture.withProvider(provider -> provider.getUserByUsername(fixture.realm(), username));
+    }
+
+    @Benchmark
+    public UserModel getUserById() {
+        String id = StorageId.keycloakId(fixture.model(), fixture.id(randomIndex()));
+        return fixture.withProvider(provider -> provider.getUserById(fixture.realm(), id));
+    }
+
+    @Benchmark
+    public UserModel getUserByEmail() {
+        String email = ExternalUserStoreFixture.email(randomIndex());
+        return fixture.withProvider(provider -> provider.getUserByEmail(fixture.realm(), email));
+    }
+
+    @Benchmark
+    public List<UserModel> searchForUserStream() {
+        int first = randomIndex() / pageSize * pageSize;
+        return fixture.withProvider(provider -> provider
+                .searchForUserStream(fixture.realm(), Map.of(UserModel.SEARCH, "*"), first, pageSize)
+                .toList());
+    }
+
+    @Benchmark
+    public int getUsersCount() {
+        return fixture.withProvider(provider -> provider.getUsersCount(fixture.realm()));
+    }
+}
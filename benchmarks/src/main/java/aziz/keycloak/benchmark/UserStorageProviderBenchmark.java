@@ -0,0 +1,118 @@
+package aziz.keycloak.benchmark;
+
+import aziz.keycloak.adapter.ExternalUserAdapter;
+import aziz.keycloak.testing.ExternalUserStoreFixture;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the provider's SPI entry points against an embedded external store. Every lookup opens a fresh
+ * provider, as Keycloak does once per session, so persistence-context reuse does not hide database round trips.
+ * Throughput and sampled latency (with percentiles) are reported; add {@code -prof gc} for allocation rates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserStorageProviderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"10000"})
+        public int userCount;
+
+        ExternalUserStoreFixture fixture;
+
+        ExternalUserAdapter adapter;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            fixture = new ExternalUserStoreFixture(userCount);
+            adapter = fixture.withProvider(provider ->
+                    (ExternalUserAdapter) provider.getUserByUsername(fixture.realm(), ExternalUserStoreFixture.username(1)));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixture.close();
+        }
+
+        int randomIndex() {
+            return ThreadLocalRandom.current().nextInt(userCount);
+        }
+    }
+
+    @Benchmark
+    public UserModel getUserByUsername(Store store) {
+        return store.fixture.withProvider(provider ->
+                provider.getUserByUsername(store.fixture.realm(), ExternalUserStoreFixture.username(store.randomIndex())));
+    }
+
+    @Benchmark
+    public UserModel getUserByEmail(Store store) {
+        return store.fixture.withProvider(provider ->
+                provider.getUserByEmail(store.fixture.realm(), ExternalUserStoreFixture.email(store.randomIndex())));
+    }
+
+    @Benchmark
+    public UserModel getUserById(Store store) {
+        String id = StorageId.keycloakId(store.fixture.model(), store.fixture.id(store.randomIndex()));
+        return store.fixture.withProvider(provider ->
+                provider.getUserById(store.fixture.realm(), id));
+    }
+
+    @Benchmark
+    public List<UserModel> searchForUserStream(Store store) {
+        Map<String, String> params = Map.of(UserModel.SEARCH, "user_" + store.randomIndex() % 100);
+        return store.fixture.withProvider(provider ->
+                provider.searchForUserStream(store.fixture.realm(), params, 0, 20).toList());
+    }
+
+    @Benchmark
+    public List<UserModel> getRoleMembersStream(Store store) {
+        String externalRole = ExternalUserStoreFixture.EXTERNAL_ROLES[store.randomIndex() % ExternalUserStoreFixture.EXTERNAL_ROLES.length];
+        RoleModel role = store.fixture.realmRole(externalRole);
+        return store.fixture.withProvider(provider ->
+                provider.getRoleMembersStream(store.fixture.realm(), role, 0, 20).toList());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean isValid(Store store) {
+        return store.fixture.withProvider(provider ->
+                provider.isValid(store.fixture.realm(), store.adapter,
+                        UserCredentialModel.password(ExternalUserStoreFixture.PASSWORD)));
+    }
+
+    @Benchmark
+    public Map<String, List<String>> adapterGetAttributes(Store store) {
+        return store.adapter.getAttributes();
+    }
+
+    @Benchmark
+    public Set<RoleModel> adapterGetRoleMappingsInternal(Store store) {
+        return store.adapter.getRoleMappingsInternal();
+    }
+}
@@ -32,10 +32,11 @@ INSERT INTO role_entity (id, name) VALUES
     (gen_random_uuid()::VARCHAR(36), 'support');
 
 
--- Create a user_entity table and insert values for testing
+-- Create a user_entity table and insert values for testing. Usernames use the C collation, the order in which
+-- pages read from several shards are merged.
 CREATE TABLE user_entity (
                              id VARCHAR(36) PRIMARY KEY,
-                             username VARCHAR(255) NOT NULL UNIQUE,
+                             username VARCHAR(255) COLLATE "C" NOT NULL UNIQUE,
                              email VARCHAR(255) NOT NULL UNIQUE,
                              password VARCHAR(255) NOT NULL,
                              role_id VARCHAR(36) NOT NULL,
@@ -44,6 +45,23 @@ CREATE TABLE user_entity (
                              created_at BIGINT DEFAULT EXTRACT(EPOCH FROM NOW()) * 1000::BIGINT,
                              CONSTRAINT fk_role_entity FOREIGN KEY(role_id) REFERENCES role_entity(id)
 );
+
+-- The provider matches usernames and emails case-insensitively, in a single query on both columns.
+-- text_pattern_ops also serves the 'prefix' search mode (lower(column) like 'term%')
+CREATE INDEX user_entity_lower_username_idx ON user_entity (lower(username) text_pattern_ops);
+CREATE INDEX user_entity_lower_email_idx ON user_entity (lower(email) text_pattern_ops);
+CREATE INDEX user_entity_lower_first_name_idx ON user_entity (lower(first_name) text_pattern_ops);
+CREATE INDEX user_entity_lower_last_name_idx ON user_entity (lower(last_name) text_pattern_ops);
+
+-- Serves the startup warm-up's preload of the newest users and the membership index refresh
+CREATE INDEX user_entity_created_at_idx ON user_entity (created_at DESC NULLS LAST);
+
+-- Trigram indexes serve the 'trigram' search mode (lower(column) like '%term%')
+CREATE EXTENSION IF NOT EXISTS "pg_trgm";
+CREATE INDEX user_entity_username_trgm_idx ON user_entity USING gin (lower(username) gin_trgm_ops);
+CREATE INDEX user_entity_email_trgm_idx ON user_entity USING gin (lower(email) gin_trgm_ops);
+CREATE INDEX user_entity_first_name_trgm_idx ON user_entity USING gin (lower(first_name) gin_trgm_ops);
+CREATE INDEX user_entity_last_name_trgm_idx ON user_entity USING gin (lower(last_name) gin_trgm_ops);
 INSERT INTO user_entity (id, email, username, password, role_id, first_name, last_name) VALUES
     --admin user in the system
     (gen_random_uuid()::VARCHAR(36),
@@ -79,4 +97,41 @@ INSERT INTO user_entity (id, email, username, password, role_id, first_name, las
     crypt('support', gen_salt('bf')),
     (SELECT id FROM role_entity WHERE name = 'support'),
     'Support_first_name',
-    'Support_last_name');
\ No newline at end of file
+    'Support_last_name');
+
+-- Notifications for the provider's 'postgres' change feed. Updates notify the row before and after the change,
+-- so caches keyed by an old username or email are evicted too. A renamed or deleted role notifies each of its users,
+-- so a role with many users sends as many notifications.
+CREATE OR REPLACE FUNCTION notify_user_entity_change() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        PERFORM pg_notify('external_user_changes',
+            json_build_object('id', OLD.id, 'username', OLD.username, 'email', OLD.email)::text);
+    END IF;
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        PERFORM pg_notify('external_user_changes',
+            json_build_object('id', NEW.id, 'username', NEW.username, 'email', NEW.email)::text);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_entity_change_notify
+    AFTER INSERT OR UPDATE OR DELETE ON user_entity
+    FOR EACH ROW EXECUTE FUNCTION notify_user_entity_change();
+
+CREATE OR REPLACE FUNCTION notify_role_entity_change() RETURNS trigger AS $$
+DECLARE
+    member RECORD;
+BEGIN
+    FOR member IN SELECT id, username, email FROM user_entity WHERE role_id = OLD.id LOOP
+        PERFORM pg_notify('external_user_changes',
+            json_build_object('id', member.id, 'username', member.username, 'email', member.email)::text);
+    END LOOP;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER role_entity_change_notify
+    AFTER UPDATE OF name OR DELETE ON role_entity
+    FOR EACH ROW EXECUTE FUNCTION notify_role_entity_change();
@@ -1,7 +1,7 @@
 package aziz.keycloak.adapter;
 
 import aziz.keycloak.domain.ExternalUserEntity;
-import org.jboss.logging.Logger;
+import aziz.keycloak.mapping.RealmRoleResolver;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
@@ -12,7 +12,6 @@ import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,19 +22,23 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     protected final String keycloakUserId;
 
-    protected final Map<String, Set<String>> roleMappings;
+    protected final RealmRoleResolver realmRoleResolver;
 
-    private static final Logger logger = Logger.getLogger(ExternalUserAdapter.class);
+    // attributes backed by the external store, built on first use; they never change during a session
+    private Map<String, List<String>> externalAttributes;
+
+    // realm roles of the user's external role, resolved on first use
+    private Set<RoleModel> roleMappings;
 
     public ExternalUserAdapter(KeycloakSession session,
                                RealmModel realm,
                                ComponentModel storageProviderModel,
                                ExternalUserEntity externalUserEntity,
-                               Map<String, Set<String>> roleMappings) {
+                               RealmRoleResolver realmRoleResolver) {
         super(session, realm, storageProviderModel);
         this.externalUserEntity = externalUserEntity;
         this.keycloakUserId = StorageId.keycloakId(storageProviderModel, externalUserEntity.getId());
-        this.roleMappings = roleMappings;
+        this.realmRoleResolver = realmRoleResolver;
     }
 
     @Override
@@ -107,19 +110,10 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public Set<RoleModel> getRoleMappingsInternal() {
-        String userRole = externalUserEntity.getRole().getName();
-        Set<RoleModel> roles = new HashSet<>();
-        Set<String> mappedRealmRoles = roleMappings.getOrDefault(userRole, new HashSet<>());
-        for(String mappedRole : mappedRealmRoles) {
-            RoleModel roleModel = realm.getRole(mappedRole);
-            if(roleModel != null) {
-                roles.add(roleModel);
-            } else{
-                logger.warn("Mapping between external user role: <" + userRole + "> and realm role: <" + mappedRole + "> " +
-                        "cannot be done as the realm role doesn't exist" );
-            }
+        if (roleMappings == null) {
+            roleMappings = realmRoleResolver.getRealmRoles(realm, externalUserEntity.getRole().getName());
         }
-        return roles;
+        return roleMappings;
     }
 
     @Override
@@ -133,23 +127,35 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
         }
     }
 
+    /**
+     * The external attributes, built once per adapter, are added to the map read from federated storage, so callers
+     * get a fresh map they may change on every call.
+     */
     @Override
     public Map<String, List<String>> getAttributes() {
         MultivaluedHashMap<String, String> attributes = getFederatedStorage().getAttributes(realm, this.getId());
         if (attributes == null) {
             attributes = new MultivaluedHashMap<>();
         }
-        attributes.putAll(
-                Map.of(
-                        UserModel.USERNAME, List.of(getUsername()),
-                        UserModel.EMAIL, List.of(getEmail()),
-                        UserModel.FIRST_NAME, List.of(getFirstName()),
-                        UserModel.LAST_NAME, List.of(getLastName())
-                )
-        );
+        attributes.putAll(getExternalAttributes());
         return attributes;
     }
 
+    private Map<String, List<String>> getExternalAttributes() {
+        if (externalAttributes == null) {
+            externalAttributes = Map.of(
+                    UserModel.USERNAME, valueOf(getUsername()),
+                    UserModel.EMAIL, valueOf(getEmail()),
+                    UserModel.FIRST_NAME, valueOf(getFirstName()),
+                    UserModel.LAST_NAME, valueOf(getLastName()));
+        }
+        return externalAttributes;
+    }
+
+    private static List<String> valueOf(String value) {
+        return value == null ? List.of() : List.of(value);
+    }
+
     @Override
     public Stream<String> getAttributeStream(String name) {
         return switch (name) {
@@ -171,10 +177,6 @@ public class ExternalUserAdapter extends AbstractUserAdapterFederatedStorage {
         throwReadOnlyException("created timestamp");
     }
 
-    public String getPassword() {
-        return externalUserEntity.getPassword();
-    }
-
     private void throwReadOnlyException(String attributeName) {
         throw new ReadOnlyException("Federated user's attribute: " + attributeName + " is read-only");
     }
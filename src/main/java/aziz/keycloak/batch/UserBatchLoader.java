@@ -0,0 +1,142 @@
+package aziz.keycloak.batch;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.resilience.ExternalStoreUnavailableException;
+import org.keycloak.models.ModelException;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Coalesces lookups of users by id made by concurrent sessions of one component into batched queries.
+ * <p>
+ * The first lookup opens a batch and waits up to the batch window for others to join, or until the batch is full.
+ * It then loads every id of the batch with one query and hands each waiting lookup its user. Lookups arriving
+ * after a batch was closed open the next one. Users are handed out as detached snapshots, since they are shared
+ * across sessions. A failed query fails every lookup of its batch with the query's exception, and a lookup waits
+ * no longer than the maximum wait for the batch it joined.
+ */
+public class UserBatchLoader {
+
+    private static final class Batch {
+        final Map<String, CompletableFuture<ExternalUserEntity>> pending = new LinkedHashMap<>();
+    }
+
+    private final int maxBatchSize;
+
+    private final long windowNanos;
+
+    private final long maxWaitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // signalled when the open batch fills up; awaited in nanoseconds, as Object.wait rounds up to whole milliseconds
+    private final Condition batchFull = lock.newCondition();
+
+    // batch new lookups join, null until the next lookup opens one
+    private Batch open;
+
+    public UserBatchLoader(int maxBatchSize, long windowMicros, long maxWaitMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        if (maxWaitMillis < 1) {
+            throw new IllegalArgumentException("maxWaitMillis must be positive: " + maxWaitMillis);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = windowMicros * 1000L;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @param query loads the users with the given ids; only called on the thread that opened the batch
+     * @return the user with the given id, or null if there is none
+     */
+    public ExternalUserEntity load(String id, Function<Collection<String>, List<ExternalUserEntity>> query) {
+        Batch batch;
+        CompletableFuture<ExternalUserEntity> result;
+        boolean leader = false;
+        lock.lock();
+        try {
+            if (open == null) {
+                open = new Batch();
+                leader = true;
+            }
+            batch = open;
+            result = batch.pending.computeIfAbsent(id, key -> new CompletableFuture<>());
+            if (batch.pending.size() >= maxBatchSize) {
+                open = null;
+                batchFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (leader) {
+            try {
+                awaitFollowers(batch);
+                run(batch, query);
+            } finally {
+                // whatever stopped the leader, no lookup may be left waiting for the batch
+                batch.pending.values().forEach(waiting -> waiting.completeExceptionally(
+                        new ModelException("Batched lookup of users was abandoned")));
+            }
+        }
+        try {
+            return result.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            // rethrown as is, so that callers can tell an unavailable store from other failures
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new ModelException("Batched lookup of user " + id + " failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new ExternalStoreUnavailableException("Batched lookup of user " + id + " did not complete within "
+                    + maxWaitMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while waiting for the batched lookup of user " + id, e);
+        }
+    }
+
+    private void awaitFollowers(Batch batch) {
+        lock.lock();
+        try {
+            for (long remaining = windowNanos; open == batch && remaining > 0; ) {
+                remaining = batchFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (open == batch) {
+                open = null;
+            }
+            lock.unlock();
+        }
+    }
+
+    private static void run(Batch batch, Function<Collection<String>, List<ExternalUserEntity>> query) {
+        // closed, no more lookups join it
+        Map<String, CompletableFuture<ExternalUserEntity>> pending = batch.pending;
+        try {
+            for (ExternalUserEntity user : query.apply(pending.keySet())) {
+                CompletableFuture<ExternalUserEntity> waiting = pending.get(user.getId());
+                if (waiting != null) {
+                    waiting.complete(user.snapshot());
+                }
+            }
+            pending.values().forEach(waiting -> waiting.complete(null));
+        } catch (RuntimeException | Error e) {
+            pending.values().forEach(waiting -> waiting.completeExceptionally(e));
+            throw e;
+        }
+    }
+}
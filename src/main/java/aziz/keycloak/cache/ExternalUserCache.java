@@ -0,0 +1,242 @@
+package aziz.keycloak.cache;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local cache of detached {@link ExternalUserEntity} snapshots, shared by every session of one component.
+ * <p>
+ * Users are reachable by id and by case-insensitive username and email. Lookups for users that do not exist are remembered for a
+ * shorter time, since Keycloak asks every federation provider about usernames that only one of them knows.
+ * Entries expire after a fixed TTL and the oldest entries are evicted first once either the entry count or the
+ * estimated memory footprint exceeds its bound. Expired entries are kept until evicted or replaced, so that they can
+ * still be served while the external store is unavailable.
+ */
+public class ExternalUserCache {
+
+    public enum KeyType {
+        ID, USERNAME, EMAIL
+    }
+
+    private record Key(KeyType type, String value) {
+    }
+
+    private record Entry(ExternalUserEntity user, long expiresAt, long weight) {
+    }
+
+    private final ConcurrentHashMap<String, Entry> usersById = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, String> idsByUsername = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, String> idsByEmail = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Key, Long> misses = new ConcurrentHashMap<>();
+
+    // insertion order of entries, used to evict the oldest first. Replaced entries stay queued until polled.
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong weight = new AtomicLong();
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    public ExternalUserCache(long ttlMillis, long negativeTtlMillis, int maxEntries, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return null if nothing is cached for the key, an empty Optional if the user is known not to exist,
+     * the cached snapshot otherwise
+     */
+    public Optional<ExternalUserEntity> get(KeyType type, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (type != KeyType.ID) {
+            value = ExternalUserEntity.normalizeLoginIdentifier(value);
+        }
+        long now = System.currentTimeMillis();
+        String id = idOf(type, value);
+        if (id != null) {
+            Entry entry = usersById.get(id);
+            if (entry != null && entry.expiresAt > now && matches(entry.user, type, value)) {
+                return Optional.of(entry.user);
+            }
+        }
+        Key key = new Key(type, value);
+        Long missExpiresAt = misses.get(key);
+        if (missExpiresAt != null) {
+            if (missExpiresAt > now) {
+                return Optional.empty();
+            }
+            misses.remove(key, missExpiresAt);
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached user for the key even if its entry expired, or null
+     */
+    public ExternalUserEntity getStale(KeyType type, String value) {
+        if (value == null) {
+            return null;
+        }
+        if (type != KeyType.ID) {
+            value = ExternalUserEntity.normalizeLoginIdentifier(value);
+        }
+        String id = idOf(type, value);
+        Entry entry = id != null ? usersById.get(id) : null;
+        return entry != null && matches(entry.user, type, value) ? entry.user : null;
+    }
+
+    private String idOf(KeyType type, String value) {
+        return switch (type) {
+            case ID -> value;
+            case USERNAME -> idsByUsername.get(value);
+            case EMAIL -> idsByEmail.get(value);
+        };
+    }
+
+    public void put(ExternalUserEntity user) {
+        ExternalUserEntity snapshot = user.snapshot();
+        Entry entry = new Entry(snapshot, System.currentTimeMillis() + ttlMillis, weigh(snapshot));
+        Entry previous = usersById.put(snapshot.getId(), entry);
+        if (previous != null) {
+            weight.addAndGet(-previous.weight);
+            unindex(previous.user);
+        }
+        weight.addAndGet(entry.weight);
+        String username = ExternalUserEntity.normalizeLoginIdentifier(snapshot.getUsername());
+        String email = ExternalUserEntity.normalizeLoginIdentifier(snapshot.getEmail());
+        idsByUsername.put(username, snapshot.getId());
+        idsByEmail.put(email, snapshot.getId());
+        misses.remove(new Key(KeyType.ID, snapshot.getId()));
+        misses.remove(new Key(KeyType.USERNAME, username));
+        misses.remove(new Key(KeyType.EMAIL, email));
+        insertionOrder.add(entry);
+        queued.incrementAndGet();
+        evict();
+    }
+
+    public void putMiss(KeyType type, String value) {
+        if (value == null || negativeTtlMillis <= 0) {
+            return;
+        }
+        // misses are small and short-lived; cap them by count alone
+        if (misses.size() >= maxEntries) {
+            long now = System.currentTimeMillis();
+            misses.values().removeIf(expiresAt -> expiresAt <= now);
+            if (misses.size() >= maxEntries) {
+                return;
+            }
+        }
+        String key = type == KeyType.ID ? value : ExternalUserEntity.normalizeLoginIdentifier(value);
+        misses.put(new Key(type, key), System.currentTimeMillis() + negativeTtlMillis);
+    }
+
+    public void invalidate(String id) {
+        Entry entry = usersById.get(id);
+        if (entry != null) {
+            remove(id, entry);
+        }
+    }
+
+    /**
+     * Drops the user with this id as well as remembered misses for its id, username and email, e.g. after the user
+     * was created, changed or deleted in the external store.
+     */
+    public void invalidate(String id, String username, String email) {
+        invalidate(id);
+        misses.remove(new Key(KeyType.ID, id));
+        if (username != null) {
+            String normalized = ExternalUserEntity.normalizeLoginIdentifier(username);
+            misses.remove(new Key(KeyType.USERNAME, normalized));
+            String cachedId = idsByUsername.get(normalized);
+            if (cachedId != null) {
+                invalidate(cachedId);
+            }
+        }
+        if (email != null) {
+            String normalized = ExternalUserEntity.normalizeLoginIdentifier(email);
+            misses.remove(new Key(KeyType.EMAIL, normalized));
+            String cachedId = idsByEmail.get(normalized);
+            if (cachedId != null) {
+                invalidate(cachedId);
+            }
+        }
+    }
+
+    public void clear() {
+        usersById.clear();
+        idsByUsername.clear();
+        idsByEmail.clear();
+        misses.clear();
+        insertionOrder.clear();
+        queued.set(0);
+        weight.set(0);
+    }
+
+    public int size() {
+        return usersById.size();
+    }
+
+    private void evict() {
+        while (usersById.size() > maxEntries || weight.get() > maxBytes || queued.get() > 2L * maxEntries) {
+            Entry entry = insertionOrder.poll();
+            if (entry == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            remove(entry.user.getId(), entry);
+        }
+    }
+
+    private void remove(String id, Entry entry) {
+        if (usersById.remove(id, entry)) {
+            weight.addAndGet(-entry.weight);
+            unindex(entry.user);
+        }
+    }
+
+    private void unindex(ExternalUserEntity user) {
+        idsByUsername.remove(ExternalUserEntity.normalizeLoginIdentifier(user.getUsername()), user.getId());
+        idsByEmail.remove(ExternalUserEntity.normalizeLoginIdentifier(user.getEmail()), user.getId());
+    }
+
+    private static boolean matches(ExternalUserEntity user, KeyType type, String value) {
+        return switch (type) {
+            case ID -> true;
+            case USERNAME -> value.equalsIgnoreCase(user.getUsername());
+            case EMAIL -> value.equalsIgnoreCase(user.getEmail());
+        };
+    }
+
+    // rough heap footprint: object headers and references plus two bytes per character
+    private static long weigh(ExternalUserEntity user) {
+        long chars = length(user.getId()) + length(user.getUsername()) + length(user.getEmail())
+                + length(user.getFirstName()) + length(user.getLastName());
+        if (user.getRole() != null) {
+            chars += length(user.getRole().getId()) + length(user.getRole().getName());
+        }
+        return 256 + chars * 2;
+    }
+
+    private static long length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,30 @@
+package aziz.keycloak.cache;
+
+/**
+ * The 64-bit string hash behind the membership index and the password throttle, which both derive two indexes from
+ * the upper and lower halves of one hash.
+ */
+public final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * FNV-1a over the characters followed by the murmur3 finalizer to spread the bits.
+     *
+     * @param seed mixed into the FNV offset basis, 0 for the unseeded hash
+     */
+    public static long hash(String value, long seed) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0, n = value.length(); i < n; i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
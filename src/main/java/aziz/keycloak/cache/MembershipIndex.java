@@ -0,0 +1,101 @@
+package aziz.keycloak.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the usernames and emails of a component's external users.
+ * <p>
+ * An index is a snapshot of the external store taken when it was built, plus the users the change feed reported
+ * since. A negative answer from {@link #mightContain(String)} is therefore only as current as that snapshot: users
+ * created or renamed after it are missing until the next rebuild, unless the change feed added them. Callers must
+ * not skip the database on a negative answer once the index {@link #isStale() is stale}. Positive answers may be
+ * false at roughly the configured rate. Entries are never removed; deleted users only add to the false positive
+ * rate until the index is rebuilt.
+ */
+public class MembershipIndex {
+
+    private final AtomicLongArray bits;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    // taken before the external store is read, so the snapshot is at least this recent
+    private final long builtAt = System.currentTimeMillis();
+
+    private final long maxStalenessMillis;
+
+    private MembershipIndex(long bitCount, int hashCount, long maxStalenessMillis) {
+        this.bits = new AtomicLongArray((int) ((bitCount + 63) / 64));
+        this.bitCount = bitCount;
+        this.hashCount = hashCount;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Sizes an index for {@code expectedEntries} at the given false positive rate. If that does not fit in
+     * {@code maxBytes}, the index is capped there and accepts a higher false positive rate instead. Create the
+     * index before reading the external store into it, and rebuild it within {@code maxStalenessMillis}.
+     */
+    public static MembershipIndex create(long expectedEntries, double falsePositiveRate, long maxBytes,
+                                         long maxStalenessMillis) {
+        long entries = Math.max(expectedEntries, 1024);
+        long optimalBits = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        long bitCount = Math.max(64, Math.min(optimalBits, Math.min(maxBytes * 8, 1L << 31)));
+        int hashCount = Math.max(1, (int) Math.round((double) bitCount / entries * Math.log(2)));
+        return new MembershipIndex(bitCount, hashCount, maxStalenessMillis);
+    }
+
+    public void add(String value) {
+        if (value == null) {
+            return;
+        }
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) * bitCount >>> 32;
+            setBit(bit);
+        }
+    }
+
+    public boolean mightContain(String value) {
+        if (value == null) {
+            return false;
+        }
+        long hash = hash(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) * bitCount >>> 32;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true once the snapshot is older than the staleness the index was created with, e.g. because rebuilds
+     * failed, after which negative answers may miss users and must be checked against the database
+     */
+    public boolean isStale() {
+        return System.currentTimeMillis() - builtAt > maxStalenessMillis;
+    }
+
+    private void setBit(long bit) {
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long current;
+        do {
+            current = bits.get(index);
+            if ((current & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(index, current, current | mask));
+    }
+
+    private static long hash(String value) {
+        return Hashing.hash(value, 0L);
+    }
+}
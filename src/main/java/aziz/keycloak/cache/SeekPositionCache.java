@@ -0,0 +1,84 @@
+package aziz.keycloak.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Remembers where earlier pages of a paginated query ended, so that a later page can continue after the last key
+ * of a preceding page instead of making the database skip every row before it.
+ * <p>
+ * Positions are kept per query signature, such as a search term, and a signature's positions are dropped once
+ * they are older than the TTL. Only the most recently used signatures are kept.
+ * <p>
+ * A position is not moved by users inserted, deleted or renamed before its key, so until it expires or the cache
+ * is cleared, a page continuing after it may skip or repeat as many users as were changed. The TTL bounds how long.
+ */
+public class SeekPositionCache {
+
+    /**
+     * Rows at {@code offset} and beyond are exactly the rows whose key sorts after {@code lastKey}.
+     */
+    public record Position(int offset, String lastKey) {
+    }
+
+    private static final class Positions {
+        final long createdAt = System.currentTimeMillis();
+        final ConcurrentSkipListMap<Integer, String> lastKeysByOffset = new ConcurrentSkipListMap<>();
+    }
+
+    private static final int MAX_POSITIONS_PER_SIGNATURE = 10_000;
+
+    private final long ttlMillis;
+
+    private final Map<String, Positions> positions;
+
+    public SeekPositionCache(long ttlMillis, int maxSignatures) {
+        this.ttlMillis = ttlMillis;
+        this.positions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Positions> eldest) {
+                return size() > maxSignatures;
+            }
+        };
+    }
+
+    /**
+     * @return the closest known position at or before {@code offset}, or null if there is none
+     */
+    public Position floor(String signature, int offset) {
+        Positions known;
+        synchronized (positions) {
+            known = positions.get(signature);
+            if (known != null && known.createdAt + ttlMillis < System.currentTimeMillis()) {
+                positions.remove(signature);
+                known = null;
+            }
+        }
+        if (known == null) {
+            return null;
+        }
+        Map.Entry<Integer, String> floor = known.lastKeysByOffset.floorEntry(offset);
+        return floor == null ? null : new Position(floor.getKey(), floor.getValue());
+    }
+
+    public void record(String signature, int offset, String lastKey) {
+        Positions known;
+        synchronized (positions) {
+            known = positions.get(signature);
+            if (known == null || known.createdAt + ttlMillis < System.currentTimeMillis()) {
+                known = new Positions();
+                positions.put(signature, known);
+            }
+        }
+        if (known.lastKeysByOffset.size() < MAX_POSITIONS_PER_SIGNATURE) {
+            known.lastKeysByOffset.put(offset, lastKey);
+        }
+    }
+
+    public void clear() {
+        synchronized (positions) {
+            positions.clear();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package aziz.keycloak.cache;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds the user count of one component for a refresh interval. Once the interval has passed, a single caller
+ * recounts while concurrent callers keep getting the previous value. A failed recount serves the previous value too.
+ */
+public class UserCountCache {
+
+    private final long refreshIntervalMillis;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile long count = -1;
+
+    private volatile long countedAt;
+
+    public UserCountCache(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    public long get(LongSupplier counter) {
+        long current = count;
+        if (current >= 0 && countedAt + refreshIntervalMillis > System.currentTimeMillis()) {
+            return current;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            // another caller is recounting; only callers that have nothing to serve count as well
+            return current >= 0 ? current : counter.getAsLong();
+        }
+        try {
+            long recounted = counter.getAsLong();
+            count = recounted;
+            countedAt = System.currentTimeMillis();
+            return recounted;
+        } catch (RuntimeException e) {
+            if (current < 0) {
+                throw e;
+            }
+            return current;
+        } finally {
+            refreshing.set(false);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package aziz.keycloak.changefeed;
+
+import java.util.List;
+
+/**
+ * Feed whose changes are published by the caller and delivered synchronously, for tests and benchmarks.
+ */
+public class InMemoryUserChangeFeed implements UserChangeFeed {
+
+    private volatile UserChangeListener listener;
+
+    @Override
+    public void start(UserChangeListener listener) {
+        this.listener = listener;
+    }
+
+    public void publish(UserChange... changes) {
+        UserChangeListener current = listener;
+        if (current != null) {
+            current.onChanges(List.of(changes));
+        }
+    }
+
+    @Override
+    public void close() {
+        listener = null;
+    }
+}
@@ -0,0 +1,156 @@
+package aziz.keycloak.changefeed;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Listens on a PostgreSQL notification channel fed by triggers on the external store's tables. Each notification
+ * carries a JSON object with the {@code id}, {@code username} and {@code email} of a changed row, or no id if any
+ * user may have changed.
+ * <p>
+ * The feed holds one connection of the persistence unit's pool for as long as it runs. Notifications sent while it
+ * is disconnected are lost, so after reconnecting it reports that any user may have changed.
+ */
+public class PostgresUserChangeFeed implements UserChangeFeed {
+    private static final Logger logger = Logger.getLogger(PostgresUserChangeFeed.class);
+
+    private static final Pattern CHANNEL = Pattern.compile("[a-z_][a-z0-9_]*");
+
+    private static final long RECONNECT_DELAY_MILLIS = 5000L;
+
+    private final ConnectionProvider connections;
+
+    private final String channel;
+
+    private final int pollTimeoutMillis;
+
+    private final String name;
+
+    private volatile boolean closed;
+
+    private Thread thread;
+
+    public PostgresUserChangeFeed(ConnectionProvider connections, String channel, int pollTimeoutMillis, String name) {
+        if (!CHANNEL.matcher(channel).matches()) {
+            throw new IllegalArgumentException("Invalid notification channel: " + channel);
+        }
+        this.connections = connections;
+        this.channel = channel;
+        this.pollTimeoutMillis = pollTimeoutMillis;
+        this.name = name;
+    }
+
+    @Override
+    public synchronized void start(UserChangeListener listener) {
+        if (thread != null) {
+            throw new IllegalStateException("Change feed " + name + " already started");
+        }
+        thread = new Thread(() -> listen(listener), "external-user-change-feed-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void listen(UserChangeListener listener) {
+        boolean listenedBefore = false;
+        while (!closed) {
+            Connection connection = null;
+            try {
+                connection = connections.getConnection();
+                connection.setAutoCommit(true);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                logger.debugv("Change feed {0} listening on {1}", name, channel);
+                if (listenedBefore) {
+                    deliver(listener, List.of(UserChange.ALL));
+                }
+                listenedBefore = true;
+                while (!closed) {
+                    PGNotification[] notifications = pgConnection.getNotifications(pollTimeoutMillis);
+                    if (notifications != null && notifications.length > 0) {
+                        deliver(listener, parse(notifications));
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!closed) {
+                    logger.warnv(e, "Change feed {0} lost its connection, reconnecting in {1} ms", name, RECONNECT_DELAY_MILLIS);
+                    pause();
+                }
+            } finally {
+                release(connection);
+            }
+        }
+    }
+
+    private List<UserChange> parse(PGNotification[] notifications) {
+        List<UserChange> changes = new ArrayList<>(notifications.length);
+        for (PGNotification notification : notifications) {
+            try {
+                changes.add(JsonSerialization.readValue(notification.getParameter(), UserChange.class));
+            } catch (IOException e) {
+                logger.warnv("Change feed {0} ignored malformed notification: {1}", name, notification.getParameter());
+            }
+        }
+        return changes;
+    }
+
+    private void deliver(UserChangeListener listener, List<UserChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            listener.onChanges(changes);
+        } catch (RuntimeException e) {
+            logger.warnv(e, "Change feed {0} failed to apply {1} changes", name, changes.size());
+        }
+    }
+
+    private void release(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("UNLISTEN " + channel);
+        } catch (SQLException e) {
+            logger.tracev(e, "Change feed {0} failed to unlisten", name);
+        }
+        try {
+            connections.closeConnection(connection);
+        } catch (SQLException e) {
+            logger.debugv(e, "Change feed {0} failed to release its connection", name);
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+}
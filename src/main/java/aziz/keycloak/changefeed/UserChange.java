@@ -0,0 +1,17 @@
+package aziz.keycloak.changefeed;
+
+/**
+ * A row of the external store that changed. Updates are reported with the values before and after the change,
+ * so that caches keyed by an old username or email are evicted as well.
+ *
+ * @param id external id, or null if any user may have changed, e.g. because notifications were lost while the feed
+ *           was disconnected
+ */
+public record UserChange(String id, String username, String email) {
+
+    public static final UserChange ALL = new UserChange(null, null, null);
+
+    public boolean isAll() {
+        return id == null;
+    }
+}
@@ -0,0 +1,13 @@
+package aziz.keycloak.changefeed;
+
+/**
+ * Source of changes made to the external store by other systems. A feed delivers changes to a single listener
+ * from the moment it is started until it is closed.
+ */
+public interface UserChangeFeed extends AutoCloseable {
+
+    void start(UserChangeListener listener);
+
+    @Override
+    void close();
+}
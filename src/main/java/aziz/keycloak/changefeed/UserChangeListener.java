@@ -0,0 +1,9 @@
+package aziz.keycloak.changefeed;
+
+import java.util.List;
+
+@FunctionalInterface
+public interface UserChangeListener {
+
+    void onChanges(List<UserChange> changes);
+}
@@ -0,0 +1,334 @@
+package aziz.keycloak.credential;
+
+import org.jboss.logging.Logger;
+
+import static aziz.keycloak.credential.BlowfishConstants.CIPHERTEXT;
+import static aziz.keycloak.credential.BlowfishConstants.ROUNDS;
+
+/**
+ * bcrypt verifier compatible with {@code $2a$}, {@code $2b$} and {@code $2y$} hashes, including those produced by
+ * pgcrypto's {@code crypt(..., gen_salt('bf'))}.
+ * <p>
+ * Blowfish state, key and output buffers are kept per thread and reused across calls, and the computed hash is
+ * compared against the stored one in constant time without building intermediate Strings.
+ */
+public class BCryptPasswordVerifier implements PasswordVerifier {
+    private static final Logger logger = Logger.getLogger(BCryptPasswordVerifier.class);
+
+    // $2a$10$ + 22 salt characters + 31 hash characters
+    private static final int HASH_LENGTH = 60;
+    private static final int SALT_OFFSET = 7;
+    private static final int SALT_CHARS = 22;
+    private static final int SALT_BYTES = 16;
+    private static final int DIGEST_OFFSET = SALT_OFFSET + SALT_CHARS;
+    private static final int DIGEST_CHARS = 31;
+    private static final int DIGEST_BYTES = 23;
+    private static final int MAX_KEY_BYTES = 72;
+    private static final int MIN_LOG_ROUNDS = 4;
+    // the key expansion does not stop on interruption, so a stored hash of a higher cost would hold a verifier
+    // thread for minutes to days after its login timed out; no password store hashes at such costs
+    private static final int MAX_LOG_ROUNDS = 20;
+
+    private static final char[] BASE64_CODE =
+            "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    private static final byte[] INDEX_64 = new byte[128];
+
+    static {
+        java.util.Arrays.fill(INDEX_64, (byte) -1);
+        for (int i = 0; i < BASE64_CODE.length; i++) {
+            INDEX_64[BASE64_CODE[i]] = (byte) i;
+        }
+    }
+
+    private final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+    @Override
+    public boolean verify(String password, String hashedPassword) {
+        if (password == null || hashedPassword == null || hashedPassword.length() != HASH_LENGTH
+                || hashedPassword.charAt(0) != '$' || hashedPassword.charAt(1) != '2'
+                || hashedPassword.charAt(3) != '$' || hashedPassword.charAt(6) != '$') {
+            logger.debug("Stored password hash is not a supported bcrypt hash");
+            return false;
+        }
+        char minor = hashedPassword.charAt(2);
+        if (minor != 'a' && minor != 'b' && minor != 'y') {
+            logger.debugv("Unsupported bcrypt revision: 2{0}", minor);
+            return false;
+        }
+        int logRounds = digit(hashedPassword.charAt(4)) * 10 + digit(hashedPassword.charAt(5));
+        if (logRounds < MIN_LOG_ROUNDS || logRounds > MAX_LOG_ROUNDS) {
+            logger.debugv("Stored password hash has an invalid or unsupported cost factor: {0}", logRounds);
+            return false;
+        }
+
+        State st = state.get();
+        try {
+            if (decodeBase64(hashedPassword, SALT_OFFSET, SALT_CHARS, st.salt, SALT_BYTES) != SALT_BYTES) {
+                logger.debug("Stored password hash has an invalid salt");
+                return false;
+            }
+            int keyLength = encodeKey(password, st.key);
+            st.cryptRaw(keyLength, logRounds);
+            encodeBase64(st.digest, DIGEST_BYTES, st.encoded);
+
+            int diff = 0;
+            for (int i = 0; i < DIGEST_CHARS; i++) {
+                diff |= st.encoded[i] ^ hashedPassword.charAt(DIGEST_OFFSET + i);
+            }
+            return diff == 0;
+        } finally {
+            st.clear();
+        }
+    }
+
+    private static int digit(char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -100;
+    }
+
+    /**
+     * Writes the UTF-8 bytes of {@code password} followed by a NUL terminator into {@code key}. Only the first
+     * {@value #MAX_KEY_BYTES} bytes take part in the key schedule, so anything beyond them is dropped.
+     */
+    private static int encodeKey(String password, byte[] key) {
+        int length = 0;
+        for (int i = 0, n = password.length(); i < n && length < MAX_KEY_BYTES; i++) {
+            char c = password.charAt(i);
+            if (c < 0x80) {
+                length = put(key, length, c);
+            } else if (c < 0x800) {
+                length = put(key, length, 0xc0 | (c >> 6));
+                length = put(key, length, 0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(password.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, password.charAt(++i));
+                length = put(key, length, 0xf0 | (cp >> 18));
+                length = put(key, length, 0x80 | ((cp >> 12) & 0x3f));
+                length = put(key, length, 0x80 | ((cp >> 6) & 0x3f));
+                length = put(key, length, 0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced the same way String.getBytes(UTF_8) does
+                length = put(key, length, '?');
+            } else {
+                length = put(key, length, 0xe0 | (c >> 12));
+                length = put(key, length, 0x80 | ((c >> 6) & 0x3f));
+                length = put(key, length, 0x80 | (c & 0x3f));
+            }
+        }
+        return put(key, length, 0);
+    }
+
+    private static int put(byte[] key, int length, int value) {
+        if (length < MAX_KEY_BYTES) {
+            key[length++] = (byte) value;
+        }
+        return length;
+    }
+
+    private static int decodeBase64(String source, int offset, int chars, byte[] target, int maxBytes) {
+        int end = offset + chars;
+        int length = 0;
+        while (offset < end - 1 && length < maxBytes) {
+            int c1 = char64(source.charAt(offset++));
+            int c2 = char64(source.charAt(offset++));
+            if (c1 == -1 || c2 == -1) {
+                break;
+            }
+            target[length] = (byte) ((c1 << 2) | ((c2 & 0x30) >> 4));
+            if (++length >= maxBytes || offset >= end) {
+                break;
+            }
+            int c3 = char64(source.charAt(offset++));
+            if (c3 == -1) {
+                break;
+            }
+            target[length] = (byte) (((c2 & 0x0f) << 4) | ((c3 & 0x3c) >> 2));
+            if (++length >= maxBytes || offset >= end) {
+                break;
+            }
+            int c4 = char64(source.charAt(offset++));
+            if (c4 == -1) {
+                break;
+            }
+            target[length++] = (byte) (((c3 & 0x03) << 6) | c4);
+        }
+        return length;
+    }
+
+    private static int char64(char c) {
+        return c < INDEX_64.length ? INDEX_64[c] : -1;
+    }
+
+    private static void encodeBase64(byte[] source, int length, char[] target) {
+        int offset = 0;
+        int out = 0;
+        while (offset < length) {
+            int c1 = source[offset++] & 0xff;
+            target[out++] = BASE64_CODE[(c1 >> 2) & 0x3f];
+            c1 = (c1 & 0x03) << 4;
+            if (offset >= length) {
+                target[out++] = BASE64_CODE[c1 & 0x3f];
+                break;
+            }
+            int c2 = source[offset++] & 0xff;
+            c1 |= (c2 >> 4) & 0x0f;
+            target[out++] = BASE64_CODE[c1 & 0x3f];
+            c1 = (c2 & 0x0f) << 2;
+            if (offset >= length) {
+                target[out++] = BASE64_CODE[c1 & 0x3f];
+                break;
+            }
+            c2 = source[offset++] & 0xff;
+            c1 |= (c2 >> 6) & 0x03;
+            target[out++] = BASE64_CODE[c1 & 0x3f];
+            target[out++] = BASE64_CODE[c2 & 0x3f];
+        }
+    }
+
+    /**
+     * Per-thread working set. Sized once and overwritten by every verification.
+     */
+    private static final class State {
+        final int[] p = new int[BlowfishConstants.P.length];
+        final int[] s = new int[BlowfishConstants.S.length];
+        final int[] block = new int[2];
+        final int[] cdata = new int[CIPHERTEXT.length];
+        final byte[] key = new byte[MAX_KEY_BYTES];
+        final byte[] salt = new byte[SALT_BYTES];
+        final byte[] digest = new byte[CIPHERTEXT.length * 4];
+        final char[] encoded = new char[DIGEST_CHARS];
+        int keyLength;
+        int keyOffset;
+        int saltOffset;
+
+        void cryptRaw(int keyLength, int logRounds) {
+            this.keyLength = keyLength;
+            System.arraycopy(BlowfishConstants.P, 0, p, 0, p.length);
+            System.arraycopy(BlowfishConstants.S, 0, s, 0, s.length);
+            System.arraycopy(CIPHERTEXT, 0, cdata, 0, cdata.length);
+
+            expensiveKeySchedule();
+            long rounds = 1L << logRounds;
+            for (long i = 0; i < rounds; i++) {
+                expandKey();
+                expandSalt();
+            }
+            for (int i = 0; i < 64; i++) {
+                for (int j = 0; j < cdata.length; j += 2) {
+                    block[0] = cdata[j];
+                    block[1] = cdata[j + 1];
+                    encipher();
+                    cdata[j] = block[0];
+                    cdata[j + 1] = block[1];
+                }
+            }
+            for (int i = 0, j = 0; i < cdata.length; i++) {
+                digest[j++] = (byte) (cdata[i] >>> 24);
+                digest[j++] = (byte) (cdata[i] >>> 16);
+                digest[j++] = (byte) (cdata[i] >>> 8);
+                digest[j++] = (byte) cdata[i];
+            }
+        }
+
+        private void expensiveKeySchedule() {
+            keyOffset = 0;
+            saltOffset = 0;
+            for (int i = 0; i < p.length; i++) {
+                p[i] ^= keyWord();
+            }
+            block[0] = 0;
+            block[1] = 0;
+            for (int i = 0; i < p.length; i += 2) {
+                block[0] ^= saltWord();
+                block[1] ^= saltWord();
+                encipher();
+                p[i] = block[0];
+                p[i + 1] = block[1];
+            }
+            for (int i = 0; i < s.length; i += 2) {
+                block[0] ^= saltWord();
+                block[1] ^= saltWord();
+                encipher();
+                s[i] = block[0];
+                s[i + 1] = block[1];
+            }
+        }
+
+        private void expandKey() {
+            keyOffset = 0;
+            for (int i = 0; i < p.length; i++) {
+                p[i] ^= keyWord();
+            }
+            reschedule();
+        }
+
+        private void expandSalt() {
+            saltOffset = 0;
+            for (int i = 0; i < p.length; i++) {
+                p[i] ^= saltWord();
+            }
+            reschedule();
+        }
+
+        private void reschedule() {
+            block[0] = 0;
+            block[1] = 0;
+            for (int i = 0; i < p.length; i += 2) {
+                encipher();
+                p[i] = block[0];
+                p[i + 1] = block[1];
+            }
+            for (int i = 0; i < s.length; i += 2) {
+                encipher();
+                s[i] = block[0];
+                s[i + 1] = block[1];
+            }
+        }
+
+        private int keyWord() {
+            int word = 0;
+            for (int i = 0; i < 4; i++) {
+                word = (word << 8) | (key[keyOffset] & 0xff);
+                keyOffset = (keyOffset + 1) % keyLength;
+            }
+            return word;
+        }
+
+        private int saltWord() {
+            int word = 0;
+            for (int i = 0; i < 4; i++) {
+                word = (word << 8) | (salt[saltOffset] & 0xff);
+                saltOffset = (saltOffset + 1) % SALT_BYTES;
+            }
+            return word;
+        }
+
+        private void encipher() {
+            int[] p = this.p;
+            int[] s = this.s;
+            int l = block[0];
+            int r = block[1];
+            int n;
+            l ^= p[0];
+            for (int i = 0; i <= ROUNDS - 2; ) {
+                n = s[(l >> 24) & 0xff];
+                n += s[0x100 | ((l >> 16) & 0xff)];
+                n ^= s[0x200 | ((l >> 8) & 0xff)];
+                n += s[0x300 | (l & 0xff)];
+                r ^= n ^ p[++i];
+
+                n = s[(r >> 24) & 0xff];
+                n += s[0x100 | ((r >> 16) & 0xff)];
+                n ^= s[0x200 | ((r >> 8) & 0xff)];
+                n += s[0x300 | (r & 0xff)];
+                l ^= n ^ p[++i];
+            }
+            block[0] = r ^ p[ROUNDS + 1];
+            block[1] = l;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(key, (byte) 0);
+            keyLength = 0;
+        }
+    }
+}
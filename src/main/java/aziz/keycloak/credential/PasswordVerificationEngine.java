@@ -0,0 +1,106 @@
+package aziz.keycloak.credential;
+
+import aziz.keycloak.metrics.ProviderMetrics;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hash verification on a dedicated, bounded pool so that bcrypt work cannot
+ * occupy more than {@code maxConcurrency} cores, no matter how many Keycloak workers are logging users in.
+ * Requests that find the queue full are rejected immediately instead of piling up.
+ */
+public class PasswordVerificationEngine implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(PasswordVerificationEngine.class);
+
+    private final PasswordVerifier verifier;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long waitTimeoutMillis;
+
+    private final ProviderMetrics metrics;
+
+    public PasswordVerificationEngine(PasswordVerifier verifier, int maxConcurrency, int queueDepth, long waitTimeoutMillis) {
+        this(verifier, maxConcurrency, queueDepth, waitTimeoutMillis, ProviderMetrics.disabled());
+    }
+
+    public PasswordVerificationEngine(PasswordVerifier verifier, int maxConcurrency, int queueDepth, long waitTimeoutMillis,
+                                      ProviderMetrics metrics) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be positive: " + queueDepth);
+        }
+        this.verifier = verifier;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.metrics = metrics;
+        this.executor = new ThreadPoolExecutor(
+                maxConcurrency,
+                maxConcurrency,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                new VerifierThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+        metrics.gaugePasswordVerificationQueue(executor.getQueue());
+    }
+
+    public boolean verify(String password, String hashedPassword) {
+        Future<Boolean> result;
+        long submittedAt = System.nanoTime();
+        try {
+            result = executor.submit(() -> {
+                long startedAt = System.nanoTime();
+                boolean verified = verifier.verify(password, hashedPassword);
+                metrics.passwordVerified(startedAt - submittedAt, System.nanoTime() - startedAt);
+                return verified;
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.passwordVerificationRejected();
+            logger.warnv("Password verification rejected, {0} verifications queued", executor.getQueue().size());
+            throw new ModelException("Password verification capacity exhausted", e);
+        }
+        try {
+            return result.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            metrics.passwordVerificationRejected();
+            logger.warnv("Password verification timed out after {0} ms", waitTimeoutMillis);
+            throw new ModelException("Password verification timed out", e);
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while waiting for password verification", e);
+        } catch (ExecutionException e) {
+            throw new ModelException("Password verification failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class VerifierThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "external-user-password-verifier-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package aziz.keycloak.credential;
+
+import aziz.keycloak.cache.Hashing;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts failed password verifications per user and per client address, so that guesses past a threshold are
+ * refused before they reach bcrypt and an attacker's rate no longer decides how many cores the verifier burns.
+ * <p>
+ * Counts live in two fixed tables of lock-free counters, one for users and one for addresses, so memory stays the
+ * same however many keys an attacker sends. Each key is counted in two counters of its table and estimated by the
+ * lower one; a key sharing both counters with a busier one may be refused early, never late. Counts halve at every
+ * half-life, which forgets old failures and lifts a refusal once the guessing stops. The hash is seeded per node,
+ * so usernames that collide with another user's counters cannot be prepared in advance.
+ */
+public class PasswordVerificationThrottle {
+
+    public enum Verdict {
+        ALLOWED, USER_THROTTLED, SOURCE_THROTTLED
+    }
+
+    // a counter holds the half-life tick of its last update above the failure count
+    private static final int COUNT_BITS = 20;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final AtomicLongArray userFailures;
+
+    private final AtomicLongArray sourceFailures;
+
+    private final int indexMask;
+
+    private final int userThreshold;
+
+    private final int sourceThreshold;
+
+    private final long halfLifeMillis;
+
+    private final long seed = ThreadLocalRandom.current().nextLong();
+
+    /**
+     * @param counters        counters per table, rounded up to a power of two
+     * @param userThreshold   failures of one user from which its verifications are refused, 0 for no limit
+     * @param sourceThreshold failures from one address from which its verifications are refused, 0 for no limit;
+     *                        only meaningful when addresses are resolved past any reverse proxy
+     */
+    public PasswordVerificationThrottle(int counters, int userThreshold, int sourceThreshold, long halfLifeMillis) {
+        if (halfLifeMillis < 1) {
+            throw new IllegalArgumentException("halfLifeMillis must be positive: " + halfLifeMillis);
+        }
+        int size = counters <= 2 ? 2 : Integer.highestOneBit(counters - 1) << 1;
+        this.userFailures = new AtomicLongArray(userThreshold > 0 ? size : 0);
+        this.sourceFailures = new AtomicLongArray(sourceThreshold > 0 ? size : 0);
+        this.indexMask = size - 1;
+        this.userThreshold = userThreshold;
+        this.sourceThreshold = sourceThreshold;
+        this.halfLifeMillis = halfLifeMillis;
+    }
+
+    /**
+     * @param source the client address, null when unknown
+     */
+    public Verdict check(String user, String source) {
+        long now = tick();
+        if (userThreshold > 0 && estimate(userFailures, hash(user), now) >= userThreshold) {
+            return Verdict.USER_THROTTLED;
+        }
+        if (sourceThreshold > 0 && source != null && estimate(sourceFailures, hash(source), now) >= sourceThreshold) {
+            return Verdict.SOURCE_THROTTLED;
+        }
+        return Verdict.ALLOWED;
+    }
+
+    public void failed(String user, String source) {
+        long now = tick();
+        if (userThreshold > 0) {
+            increment(userFailures, hash(user), now);
+        }
+        if (sourceThreshold > 0 && source != null) {
+            increment(sourceFailures, hash(source), now);
+        }
+    }
+
+    private long tick() {
+        return System.currentTimeMillis() / halfLifeMillis;
+    }
+
+    private int estimate(AtomicLongArray counters, long hash, long now) {
+        return Math.min(decayed(counters.get(first(hash)), now), decayed(counters.get(second(hash)), now));
+    }
+
+    // only counters at the estimate are raised, so keys that share one counter inflate each other as little as possible
+    private void increment(AtomicLongArray counters, long hash, long now) {
+        int estimate = estimate(counters, hash, now);
+        raise(counters, first(hash), estimate, now);
+        raise(counters, second(hash), estimate, now);
+    }
+
+    private static void raise(AtomicLongArray counters, int index, int estimate, long now) {
+        long current;
+        int count;
+        do {
+            current = counters.get(index);
+            count = decayed(current, now);
+            if (count > estimate) {
+                return;
+            }
+        } while (!counters.compareAndSet(index, current, now << COUNT_BITS | Math.min(count + 1, COUNT_MASK)));
+    }
+
+    private static int decayed(long counter, long now) {
+        int count = (int) (counter & COUNT_MASK);
+        long halvings = now - (counter >>> COUNT_BITS);
+        if (halvings <= 0) {
+            return count;
+        }
+        return halvings >= COUNT_BITS ? 0 : count >>> halvings;
+    }
+
+    private int first(long hash) {
+        return (int) hash & indexMask;
+    }
+
+    private int second(long hash) {
+        return (int) (hash >>> 32) & indexMask;
+    }
+
+    private long hash(String value) {
+        return Hashing.hash(value, seed);
+    }
+}
@@ -0,0 +1,9 @@
+package aziz.keycloak.credential;
+
+public interface PasswordVerifier {
+
+    /**
+     * @return true if {@code password} matches {@code hashedPassword}; false on mismatch or a malformed hash
+     */
+    boolean verify(String password, String hashedPassword);
+}
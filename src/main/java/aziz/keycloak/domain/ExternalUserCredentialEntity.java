@@ -0,0 +1,32 @@
+package aziz.keycloak.domain;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.Immutable;
+
+@NamedQueries({
+        @NamedQuery(name="getPasswordById", query="select c.password from ExternalUserCredentialEntity c " +
+                "where c.id = :id"),
+})
+@Entity
+@Table(name = "user_entity")
+// the password hash of an external user, mapped apart from ExternalUserEntity so that lookups and searches never read it
+@Immutable
+public class ExternalUserCredentialEntity {
+    @Id
+    @Column(name = "id", insertable = false, updatable = false)
+    private String id;
+
+    @Column(name = "password", insertable = false, updatable = false)
+    private String password;
+
+    protected ExternalUserCredentialEntity() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+}
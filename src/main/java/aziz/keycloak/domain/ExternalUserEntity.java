@@ -2,14 +2,32 @@ package aziz.keycloak.domain;
 
 import jakarta.persistence.*;
 
+import java.util.Locale;
+
 @NamedQueries({
-        @NamedQuery(name="getUserByUsername", query="select u from ExternalUserEntity u where u.username = :username"),
-        @NamedQuery(name="getUserByEmail", query="select u from ExternalUserEntity u where u.email = :email"),
+        @NamedQuery(name="getUserById", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where u.id = :id"),
+        @NamedQuery(name="getUserByUsername", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where lower(u.username) = :username"),
+        @NamedQuery(name="getUserByEmail", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where lower(u.email) = :email"),
+        @NamedQuery(name="getUserByLoginIdentifier", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where lower(u.username) = :identifier or lower(u.email) = :identifier"),
         @NamedQuery(name="getUserCount", query="select count(u) from ExternalUserEntity u"),
-        @NamedQuery(name="getAllUsers", query="select u from ExternalUserEntity u"),
-        @NamedQuery(name="getAllUsersWithAnyRole", query="select u from ExternalUserEntity u where u.role.name in :roles"),
-        @NamedQuery(name="searchForUser", query="select u from ExternalUserEntity u where " +
-                "( lower(u.username) like :search or u.email like :search ) order by u.username"),
+        @NamedQuery(name="getAllUsers", query="select u from ExternalUserEntity u join fetch u.role"),
+        @NamedQuery(name="getAllUserLoginIdentifiers", query="select u.username, u.email from ExternalUserEntity u"),
+        @NamedQuery(name="getAllUsersWithAnyRole", query="select u from ExternalUserEntity u join fetch u.role r " +
+                "where r.name in :roles order by u.username"),
+        @NamedQuery(name="getAllUsersWithAnyRoleAfter", query="select u from ExternalUserEntity u join fetch u.role r " +
+                "where r.name in :roles and u.username > :after order by u.username"),
+        @NamedQuery(name="getUsersByIds", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where u.id in :ids"),
+        @NamedQuery(name="getUsersAfter", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where u.username > :after order by u.username"),
+        @NamedQuery(name="getUsersCreatedSinceAfter", query="select u from ExternalUserEntity u join fetch u.role " +
+                "where u.createdAt >= :since and u.username > :after order by u.username"),
+        @NamedQuery(name="getNewestUsers", query="select u from ExternalUserEntity u join fetch u.role " +
+                "order by u.createdAt desc nulls last"),
 })
 @Entity
 @Table(name = "user_entity")
@@ -24,10 +42,8 @@ public class ExternalUserEntity {
     @Column(name = "username", insertable = false, updatable = false)
     private String username;
 
-    @Column(name = "password", insertable = false, updatable = false)
-    private String password;
-
-    @ManyToOne
+    // every query fetch-joins the role so that loading users never issues a select per role
+    @ManyToOne(fetch = FetchType.EAGER, optional = false)
     @JoinColumn(name = "role_id", updatable = false, insertable = false)
     private ExternalUserRoleEntity role;
 
@@ -40,8 +56,52 @@ public class ExternalUserEntity {
     @Column(name = "created_at", insertable = false, updatable = false)
     private Long createdAt;
 
+    // shard of a sharded store this user was read from, prefixed to its id; null on the first shard
+    @Transient
+    private String shardTag;
+
+    protected ExternalUserEntity() {
+    }
+
+    public ExternalUserEntity(String id, String email, String username, ExternalUserRoleEntity role,
+                              String firstName, String lastName, Long createdAt) {
+        this.id = id;
+        this.email = email;
+        this.username = username;
+        this.role = role;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * @return a detached copy of this user and its role that is safe to share across entity managers and threads
+     */
+    public ExternalUserEntity snapshot() {
+        ExternalUserRoleEntity roleSnapshot = role == null ? null : new ExternalUserRoleEntity(role.getId(), role.getName());
+        ExternalUserEntity snapshot = new ExternalUserEntity(id, email, username, roleSnapshot, firstName, lastName, createdAt);
+        snapshot.shardTag = shardTag;
+        return snapshot;
+    }
+
+    /**
+     * Usernames and emails are matched case-insensitively; the lookup queries compare against this form, which
+     * the lower(username)/lower(email) indexes of the external store are built on.
+     */
+    public static String normalizeLoginIdentifier(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the id, prefixed with the user's shard tag if it has one. Hibernate accesses fields, so the tag never
+     * reaches the store.
+     */
     public String getId() {
-        return id;
+        return shardTag == null ? id : shardTag + id;
+    }
+
+    public void setShardTag(String shardTag) {
+        this.shardTag = shardTag;
     }
 
     public String getEmail() {
@@ -52,10 +112,6 @@ public class ExternalUserEntity {
         return username;
     }
 
-    public String getPassword() {
-        return password;
-    }
-
     public ExternalUserRoleEntity getRole() {
         return role;
     }
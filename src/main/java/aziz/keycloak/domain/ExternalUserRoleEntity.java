@@ -1,11 +1,20 @@
 package aziz.keycloak.domain;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.Immutable;
+
 @NamedQueries({
-        @NamedQuery(name="getAllRoles", query="select r from ExternalUserRoleEntity r"),
+        @NamedQuery(name="getAllRoles", query="select r from ExternalUserRoleEntity r",
+                hints = @QueryHint(name = "org.hibernate.cacheable", value = "true")),
 })
 @Entity
 @Table(name = "role_entity")
+// a handful of rows that never change through this provider, shared by all sessions when the second-level cache is on
+@Immutable
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 public class ExternalUserRoleEntity {
     @Id
     @Column(name = "id", insertable = false, updatable = false)
@@ -14,6 +23,18 @@ public class ExternalUserRoleEntity {
     @Column(name = "name", insertable = false, updatable = false)
     private String name;
 
+    protected ExternalUserRoleEntity() {
+    }
+
+    public ExternalUserRoleEntity(String id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public String getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,64 @@
+package aziz.keycloak.mapping;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves the realm roles of an external role at most once per Keycloak session, so every user adapter of the
+ * session sharing that role gets the same immutable set.
+ */
+public class RealmRoleResolver {
+    private static final Logger logger = Logger.getLogger(RealmRoleResolver.class);
+
+    private final RoleMappingIndex roleMappingIndex;
+
+    private final Map<String, Set<RoleModel>> resolved = new HashMap<>();
+
+    public RealmRoleResolver(RoleMappingIndex roleMappingIndex) {
+        this.roleMappingIndex = roleMappingIndex;
+    }
+
+    public RoleMappingIndex getRoleMappingIndex() {
+        return roleMappingIndex;
+    }
+
+    public Set<RoleModel> getRealmRoles(RealmModel realm, String externalRole) {
+        if (externalRole == null) {
+            return Collections.emptySet();
+        }
+        Set<RoleModel> roles = resolved.get(externalRole);
+        if (roles == null) {
+            roles = resolve(realm, externalRole);
+            resolved.put(externalRole, roles);
+        }
+        return roles;
+    }
+
+    private Set<RoleModel> resolve(RealmModel realm, String externalRole) {
+        Map<String, String> mappedRealmRoles = roleMappingIndex.getRealmRoles(externalRole);
+        if (mappedRealmRoles.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<RoleModel> roles = new HashSet<>();
+        mappedRealmRoles.forEach((name, id) -> {
+            RoleModel roleModel = id != null ? realm.getRoleById(id) : null;
+            if (roleModel == null) {
+                roleModel = realm.getRole(name);
+            }
+            if (roleModel != null) {
+                roles.add(roleModel);
+            } else {
+                logger.warn("Mapping between external user role: <" + externalRole + "> and realm role: <" + name + "> " +
+                        "cannot be done as the realm role doesn't exist");
+            }
+        });
+        return Collections.unmodifiableSet(roles);
+    }
+}
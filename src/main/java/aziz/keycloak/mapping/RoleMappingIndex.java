@@ -0,0 +1,74 @@
+package aziz.keycloak.mapping;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Role mappings of one component, compiled once into forward and inverted lookups.
+ * <p>
+ * Realm roles are resolved to their ids when the index is compiled. Mapped roles that did not exist at that time
+ * keep a null id and are looked up by name on use.
+ */
+public class RoleMappingIndex {
+
+    public static final RoleMappingIndex EMPTY = new RoleMappingIndex(Collections.emptyMap(), Collections.emptyMap());
+
+    // external role -> realm role name -> realm role id, or null if the realm role was not found
+    private final Map<String, Map<String, String>> realmRolesByExternalRole;
+
+    // realm role name -> external roles mapped to it
+    private final Map<String, Set<String>> externalRolesByRealmRole;
+
+    private RoleMappingIndex(Map<String, Map<String, String>> realmRolesByExternalRole,
+                             Map<String, Set<String>> externalRolesByRealmRole) {
+        this.realmRolesByExternalRole = realmRolesByExternalRole;
+        this.externalRolesByRealmRole = externalRolesByRealmRole;
+    }
+
+    public static RoleMappingIndex compile(Map<String, Set<String>> roleMappings, RealmModel realm) {
+        if (roleMappings.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, Map<String, String>> forward = new HashMap<>();
+        Map<String, Set<String>> inverse = new HashMap<>();
+        roleMappings.forEach((externalRole, realmRoles) -> {
+            Map<String, String> resolved = new LinkedHashMap<>();
+            for (String realmRoleName : realmRoles) {
+                RoleModel realmRole = realm == null ? null : realm.getRole(realmRoleName);
+                resolved.put(realmRoleName, realmRole == null ? null : realmRole.getId());
+                inverse.computeIfAbsent(realmRoleName, name -> new HashSet<>()).add(externalRole);
+            }
+            forward.put(externalRole, Collections.unmodifiableMap(resolved));
+        });
+        inverse.replaceAll((realmRoleName, externalRoles) -> Set.copyOf(externalRoles));
+        return new RoleMappingIndex(Map.copyOf(forward), Map.copyOf(inverse));
+    }
+
+    /**
+     * @return realm role names mapped to their ids, for the given external role
+     */
+    public Map<String, String> getRealmRoles(String externalRole) {
+        if (externalRole == null) {
+            return Collections.emptyMap();
+        }
+        return realmRolesByExternalRole.getOrDefault(externalRole, Collections.emptyMap());
+    }
+
+    public Set<String> getExternalRoles(String realmRoleName) {
+        return externalRolesByRealmRole.getOrDefault(realmRoleName, Collections.emptySet());
+    }
+
+    /**
+     * @return names of the realm roles any external role is mapped to
+     */
+    public Set<String> getMappedRealmRoles() {
+        return externalRolesByRealmRole.keySet();
+    }
+}
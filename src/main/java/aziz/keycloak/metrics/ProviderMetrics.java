@@ -0,0 +1,207 @@
+package aziz.keycloak.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the provider's hot paths. All meters are registered up front, so recording is a lookup by ordinal
+ * and does not allocate.
+ * <p>
+ * Registered in Keycloak's global registry, the meters are exposed on the management interface's
+ * {@code /metrics} endpoint when metrics are enabled.
+ */
+public class ProviderMetrics {
+
+    public enum Operation {
+        GET_USER_BY_ID("getUserById"),
+        GET_USER_BY_USERNAME("getUserByUsername"),
+        GET_USER_BY_EMAIL("getUserByEmail"),
+        SEARCH_FOR_USER("searchForUserStream"),
+        GET_ROLE_MEMBERS("getRoleMembersStream"),
+        GET_USERS_COUNT("getUsersCount"),
+        IS_VALID("isValid");
+
+        private final String method;
+
+        Operation(String method) {
+            this.method = method;
+        }
+    }
+
+    private static final String PREFIX = "external_user_provider.";
+
+    private final MeterRegistry registry;
+
+    private final Timer[] durations;
+
+    private final DistributionSummary[] statements;
+
+    private final Counter userCacheHits;
+
+    private final Counter userCacheNegativeHits;
+
+    private final Counter userCacheMisses;
+
+    private final Counter userCacheStaleHits;
+
+    private final Counter membershipIndexSkips;
+
+    private final Counter credentialCacheHits;
+
+    private final Counter credentialCacheMisses;
+
+    private final Timer passwordVerificationQueueWait;
+
+    private final Timer passwordVerification;
+
+    private final Counter passwordVerificationRejections;
+
+    private final Counter userThrottledVerifications;
+
+    private final Counter sourceThrottledVerifications;
+
+    private final Counter bulkheadRejections;
+
+    private final Counter circuitOpenRejections;
+
+    public ProviderMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Operation[] operations = Operation.values();
+        durations = new Timer[operations.length];
+        statements = new DistributionSummary[operations.length];
+        for (Operation operation : operations) {
+            durations[operation.ordinal()] = Timer.builder(PREFIX + "operation")
+                    .description("Duration of user storage SPI calls")
+                    .tag("operation", operation.method)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            statements[operation.ordinal()] = DistributionSummary.builder(PREFIX + "operation.statements")
+                    .description("SQL statements issued per user storage SPI call")
+                    .tag("operation", operation.method)
+                    .register(registry);
+        }
+        userCacheHits = cacheCounter("user_cache", "hit");
+        userCacheNegativeHits = cacheCounter("user_cache", "negative_hit");
+        userCacheMisses = cacheCounter("user_cache", "miss");
+        userCacheStaleHits = cacheCounter("user_cache", "stale_hit");
+        credentialCacheHits = cacheCounter("credential_cache", "hit");
+        credentialCacheMisses = cacheCounter("credential_cache", "miss");
+        membershipIndexSkips = Counter.builder(PREFIX + "membership_index.skips")
+                .description("Lookups answered by the membership index without querying the external store")
+                .register(registry);
+        passwordVerificationQueueWait = Timer.builder(PREFIX + "password_verification.queue_wait")
+                .description("Time password verifications waited for a free verifier")
+                .publishPercentileHistogram()
+                .register(registry);
+        passwordVerification = Timer.builder(PREFIX + "password_verification")
+                .description("Duration of password hash verifications")
+                .publishPercentileHistogram()
+                .register(registry);
+        passwordVerificationRejections = Counter.builder(PREFIX + "password_verification.rejections")
+                .description("Password verifications rejected because the queue was full or the wait timed out")
+                .register(registry);
+        userThrottledVerifications = throttledCounter("user");
+        sourceThrottledVerifications = throttledCounter("source");
+        bulkheadRejections = rejectionCounter("bulkhead");
+        circuitOpenRejections = rejectionCounter("circuit_open");
+    }
+
+    /**
+     * @return metrics that are recorded nowhere
+     */
+    public static ProviderMetrics disabled() {
+        return new ProviderMetrics(new CompositeMeterRegistry());
+    }
+
+    public void record(Operation operation, long startNanos, int statementsBefore) {
+        durations[operation.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        statements[operation.ordinal()].record(StatementCounter.current() - statementsBefore);
+    }
+
+    public void userCacheHit() {
+        userCacheHits.increment();
+    }
+
+    public void userCacheNegativeHit() {
+        userCacheNegativeHits.increment();
+    }
+
+    public void userCacheMiss() {
+        userCacheMisses.increment();
+    }
+
+    public void userCacheStaleHit() {
+        userCacheStaleHits.increment();
+    }
+
+    public void membershipIndexSkip() {
+        membershipIndexSkips.increment();
+    }
+
+    public void credentialCacheHit() {
+        credentialCacheHits.increment();
+    }
+
+    public void credentialCacheMiss() {
+        credentialCacheMisses.increment();
+    }
+
+    public void passwordVerified(long queueWaitNanos, long verificationNanos) {
+        passwordVerificationQueueWait.record(queueWaitNanos, TimeUnit.NANOSECONDS);
+        passwordVerification.record(verificationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void passwordVerificationRejected() {
+        passwordVerificationRejections.increment();
+    }
+
+    public void passwordVerificationThrottledByUser() {
+        userThrottledVerifications.increment();
+    }
+
+    public void passwordVerificationThrottledBySource() {
+        sourceThrottledVerifications.increment();
+    }
+
+    public void bulkheadRejection() {
+        bulkheadRejections.increment();
+    }
+
+    public void circuitOpenRejection() {
+        circuitOpenRejections.increment();
+    }
+
+    public void gaugePasswordVerificationQueue(Collection<?> queue) {
+        Gauge.builder(PREFIX + "password_verification.queue_size", queue, Collection::size)
+                .description("Password verifications waiting for a free verifier")
+                .register(registry);
+    }
+
+    private Counter throttledCounter(String reason) {
+        return Counter.builder(PREFIX + "password_verification.throttled")
+                .description("Password verifications refused before hashing after too many failures")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    private Counter rejectionCounter(String reason) {
+        return Counter.builder(PREFIX + "external_store.rejections")
+                .description("Calls to the external store refused without querying it")
+                .tag("reason", reason)
+                .register(registry);
+    }
+
+    private Counter cacheCounter(String cache, String result) {
+        return Counter.builder(PREFIX + cache)
+                .description("Lookups by result")
+                .tag("result", result)
+                .register(registry);
+    }
+}
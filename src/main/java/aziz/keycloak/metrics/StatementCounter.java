@@ -0,0 +1,22 @@
+package aziz.keycloak.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Counts the SQL statements prepared on each thread, so that an operation can report how many statements it
+ * issued by comparing the count before and after. Registered in persistence.xml as the statement inspector.
+ */
+public class StatementCounter implements StatementInspector {
+
+    private static final ThreadLocal<int[]> COUNT = ThreadLocal.withInitial(() -> new int[1]);
+
+    @Override
+    public String inspect(String sql) {
+        COUNT.get()[0]++;
+        return sql;
+    }
+
+    public static int current() {
+        return COUNT.get()[0];
+    }
+}
@@ -1,31 +1,64 @@
 package aziz.keycloak.provider;
 
 import aziz.keycloak.adapter.ExternalUserAdapter;
+import aziz.keycloak.batch.UserBatchLoader;
+import aziz.keycloak.cache.ExternalUserCache;
+import aziz.keycloak.cache.MembershipIndex;
+import aziz.keycloak.cache.SeekPositionCache;
+import aziz.keycloak.cache.UserCountCache;
+import aziz.keycloak.credential.PasswordVerificationEngine;
+import aziz.keycloak.credential.PasswordVerificationThrottle;
 import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.mapping.RealmRoleResolver;
+import aziz.keycloak.mapping.RoleMappingIndex;
+import aziz.keycloak.metrics.ProviderMetrics;
+import aziz.keycloak.metrics.StatementCounter;
+import aziz.keycloak.resilience.ExternalStoreGuard;
+import aziz.keycloak.resilience.ExternalStoreUnavailableException;
+import aziz.keycloak.routing.ReadEntityManagers;
+import aziz.keycloak.routing.ReplicaRouter;
+import aziz.keycloak.routing.ShardRouter;
+import aziz.keycloak.search.UserSearchQuery;
+import aziz.keycloak.sync.ExternalUserImporter;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
+import org.hibernate.exception.JDBCConnectionException;
 import org.jboss.logging.Logger;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.*;
 import org.keycloak.models.cache.CachedUserModel;
-import org.keycloak.models.cache.OnUserCache;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.user.UserCountMethodsProvider;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
-import org.mindrot.jbcrypt.BCrypt;
 
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ExternalDBUserStorageProvider implements
         UserStorageProvider,
@@ -33,8 +66,7 @@ public class ExternalDBUserStorageProvider implements
         UserQueryProvider,
         UserCountMethodsProvider,
         CredentialInputValidator,
-        CredentialInputUpdater,
-        OnUserCache {
+        CredentialInputUpdater {
     private static final Logger logger = Logger.getLogger(ExternalDBUserStorageProvider.class);
 
     protected EntityManager entityManager;
@@ -44,84 +76,473 @@ public class ExternalDBUserStorageProvider implements
 
     protected KeycloakSession session;
 
-    // map of loaded users in this transaction
-    protected Map<String, UserModel> loadedUsers = new HashMap<>();
+    // users loaded in this transaction, by external id, username and email
+    protected final Map<String, ExternalUserAdapter> loadedUsers = new HashMap<>();
+
+    protected final Map<String, ExternalUserAdapter> loadedUsersByUsername = new HashMap<>();
+
+    protected final Map<String, ExternalUserAdapter> loadedUsersByEmail = new HashMap<>();
+
+    // answers to login identifier lookups made in this transaction, by normalized identifier
+    protected final Map<String, LoginIdentifierResolution> resolvedLoginIdentifiers = new HashMap<>();
+
+    protected record LoginIdentifierResolution(ExternalUserEntity byUsername, ExternalUserEntity byEmail) {
+    }
 
     public static final String PASSWORD_CACHE_KEY = ExternalUserAdapter.class.getName() + ".password";
 
-    protected final Map<String, Set<String>> roleMappings;
+    static final String QUERY_TIMEOUT_HINT = "jakarta.persistence.query.timeout";
+
+    // rows read per query by searches and role member reads without maxResults
+    static final int UNPAGED_READ_PAGE_SIZE = 1000;
+
+    protected final RoleMappingIndex roleMappingIndex;
+
+    // realm roles of each external role, resolved once for all users of this session
+    protected final RealmRoleResolver realmRoleResolver;
+
+    protected final PasswordVerificationEngine passwordVerificationEngine;
+
+    // node-local user snapshots shared with other sessions; null when caching is disabled
+    protected final ExternalUserCache userCache;
+
+    // usernames and emails known to exist externally; null until built or when disabled
+    protected final MembershipIndex membershipIndex;
+
+    // where earlier pages ended; null unless the component uses keyset pagination
+    protected final SeekPositionCache seekPositions;
+
+    protected final UserSearchQuery.SearchMode searchMode;
+
+    protected final ProviderConfig.CountMode countMode;
+
+    // user count shared with other sessions; null when counting exactly
+    protected final UserCountCache userCountCache;
+
+    protected final ProviderMetrics metrics;
+
+    // coalesces lookups by id with those of concurrent sessions; null when batching is disabled
+    protected final UserBatchLoader batchLoader;
+
+    // routes reads to replica persistence units; null when the component has no replicas
+    protected final ReplicaRouter replicaRouter;
+
+    // entity managers of the replicas read from in this session, by persistence unit name
+    protected final Map<String, EntityManager> replicaEntityManagers = new HashMap<>();
+
+    // locates users of a sharded store; null when the component has a single persistence unit
+    protected final ShardRouter shardRouter;
+
+    // entity managers of the shards other than the first read from in this session, by shard
+    protected final Map<Integer, EntityManager> shardEntityManagers = new HashMap<>();
+
+    // bounds the calls to the external store; null when they are not guarded
+    protected final ExternalStoreGuard storeGuard;
+
+    protected final ProviderConfig.PasswordCaching passwordCaching;
+
+    // refuses guesses at users and from addresses with too many recent failures; null when disabled
+    protected final PasswordVerificationThrottle passwordVerificationThrottle;
 
     public ExternalDBUserStorageProvider(KeycloakSession session,
                                          ComponentModel model,
                                          EntityManager entityManager,
-                                         Map<String, Set<String>> roleMappings) {
+                                         RoleMappingIndex roleMappingIndex,
+                                         PasswordVerificationEngine passwordVerificationEngine,
+                                         ExternalUserCache userCache,
+                                         MembershipIndex membershipIndex,
+                                         SeekPositionCache seekPositions,
+                                         UserSearchQuery.SearchMode searchMode,
+                                         ProviderConfig.CountMode countMode,
+                                         UserCountCache userCountCache,
+                                         ProviderMetrics metrics,
+                                         UserBatchLoader batchLoader,
+                                         ReplicaRouter replicaRouter,
+                                         ShardRouter shardRouter,
+                                         ExternalStoreGuard storeGuard,
+                                         ProviderConfig.PasswordCaching passwordCaching,
+                                         PasswordVerificationThrottle passwordVerificationThrottle) {
         this.session = session;
         this.model = model;
         this.entityManager = entityManager;
-        this.roleMappings = roleMappings;
+        this.roleMappingIndex = roleMappingIndex;
+        this.realmRoleResolver = new RealmRoleResolver(roleMappingIndex);
+        this.passwordVerificationEngine = passwordVerificationEngine;
+        this.userCache = userCache;
+        this.membershipIndex = membershipIndex;
+        this.seekPositions = seekPositions;
+        this.searchMode = searchMode;
+        this.countMode = countMode;
+        this.userCountCache = userCountCache;
+        this.metrics = metrics;
+        this.batchLoader = batchLoader;
+        this.replicaRouter = replicaRouter;
+        this.shardRouter = shardRouter;
+        this.storeGuard = storeGuard;
+        this.passwordCaching = passwordCaching;
+        this.passwordVerificationThrottle = passwordVerificationThrottle;
+        applyQueryTimeout(entityManager);
+    }
+
+    /**
+     * Hibernate passes the timeout to every query the entity manager creates afterwards as the JDBC statement timeout.
+     */
+    private void applyQueryTimeout(EntityManager entityManager) {
+        if (storeGuard != null && storeGuard.getQueryTimeoutMillis() > 0) {
+            entityManager.setProperty(QUERY_TIMEOUT_HINT, storeGuard.getQueryTimeoutMillis());
+        }
+    }
+
+    private <T> T guarded(Supplier<T> call) {
+        return storeGuard != null ? storeGuard.call(call) : call.get();
     }
 
     @Override
     public void close() {
        entityManager.close();
+       replicaEntityManagers.values().forEach(EntityManager::close);
+       shardEntityManagers.values().forEach(EntityManager::close);
     }
 
     @Override
     public UserModel getUserById(RealmModel realm, String id) {
-        String externalId = StorageId.externalId(id);
-        ExternalUserAdapter externalUserAdapter;
-        if(loadedUsers.get(externalId) != null) {
-            return loadedUsers.get(externalId);
-        }
-        ExternalUserEntity entity = entityManager.find(ExternalUserEntity.class, externalId);
-        if (entity != null) {
-            externalUserAdapter = new ExternalUserAdapter(session, realm, model, entity, roleMappings);
-            loadedUsers.put(externalId, externalUserAdapter);
-            return externalUserAdapter;
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        try {
+            String externalId = StorageId.externalId(id);
+            ExternalUserAdapter loaded = loadedUsers.get(externalId);
+            if (loaded != null) {
+                return loaded;
+            }
+            ExternalUserEntity entity = findUser(ExternalUserCache.KeyType.ID, externalId, () -> loadUser(externalId));
+            return entity != null ? toAdapter(realm, entity) : null;
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USER_BY_ID, start, statements);
         }
-        return null;
     }
 
     @Override
     public UserModel getUserByUsername(RealmModel realm, String username) {
-        TypedQuery<ExternalUserEntity> query = entityManager
-                .createNamedQuery("getUserByUsername", ExternalUserEntity.class);
-        query.setParameter("username", username);
-        List<ExternalUserEntity> result = query.getResultList();
-        if (!result.isEmpty()) {
-            return new ExternalUserAdapter(session, realm, model, result.getFirst(), roleMappings);
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        try {
+            String identifier = ExternalUserEntity.normalizeLoginIdentifier(username);
+            if (identifier == null) {
+                return null;
+            }
+            ExternalUserAdapter loaded = loadedUsersByUsername.get(identifier);
+            if (loaded != null) {
+                return loaded;
+            }
+            if (isKnownAbsent(identifier)) {
+                return null;
+            }
+            ExternalUserEntity entity = findUser(ExternalUserCache.KeyType.USERNAME, identifier,
+                    () -> resolveLoginIdentifier(username).byUsername());
+            return entity != null ? toAdapter(realm, entity) : null;
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USER_BY_USERNAME, start, statements);
         }
-        return null;
     }
 
     @Override
     public UserModel getUserByEmail(RealmModel realm, String email) {
-        TypedQuery<ExternalUserEntity> query = entityManager
-                .createNamedQuery("getUserByEmail", ExternalUserEntity.class);
-        query.setParameter("email", email);
-        List<ExternalUserEntity> result = query.getResultList();
-        if (!result.isEmpty()) {
-            return new ExternalUserAdapter(session, realm, model, result.getFirst(), roleMappings);
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        try {
+            String identifier = ExternalUserEntity.normalizeLoginIdentifier(email);
+            if (identifier == null) {
+                return null;
+            }
+            ExternalUserAdapter loaded = loadedUsersByEmail.get(identifier);
+            if (loaded != null) {
+                return loaded;
+            }
+            if (isKnownAbsent(identifier)) {
+                return null;
+            }
+            ExternalUserEntity entity = findUser(ExternalUserCache.KeyType.EMAIL, identifier, () -> findByEmail(email));
+            return entity != null ? toAdapter(realm, entity) : null;
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USER_BY_EMAIL, start, statements);
         }
-        return null;
+    }
+
+    private ExternalUserEntity loadUser(String externalId) {
+        int shard = shardRouter != null ? ShardRouter.shardOfId(externalId) : 0;
+        if (shard > 0) {
+            if (shard >= shardRouter.size()) {
+                return null;
+            }
+            return tagged(shard, readShard(shard, em -> findById(em, ShardRouter.untag(externalId))));
+        }
+        if (batchLoader == null) {
+            return read(em -> findById(em, externalId));
+        }
+        return batchLoader.load(externalId, ids -> read(em -> em
+                .createNamedQuery("getUsersByIds", ExternalUserEntity.class)
+                .setParameter("ids", ids)
+                .getResultList()));
+    }
+
+    // a query rather than find, so that the query timeout applies
+    private static ExternalUserEntity findById(EntityManager entityManager, String id) {
+        List<ExternalUserEntity> users = entityManager.createNamedQuery("getUserById", ExternalUserEntity.class)
+                .setParameter("id", id)
+                .getResultList();
+        return users.isEmpty() ? null : users.getFirst();
+    }
+
+    protected <T> T read(Function<EntityManager, T> query) {
+        return guarded(() -> route(query));
+    }
+
+    /**
+     * Runs a read on the best replica. A replica that is unreachable or times out is ejected and the read is retried
+     * on the next best one, and on the primary once no healthy replica is left. Other failures are the read's own
+     * and are thrown right away. All attempts run under one bulkhead permit, so together they get one query timeout.
+     */
+    private <T> T route(Function<EntityManager, T> query) {
+        if (replicaRouter == null) {
+            return query.apply(entityManager);
+        }
+        long timeoutMillis = storeGuard != null ? storeGuard.getQueryTimeoutMillis() : 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<ReplicaRouter.Replica> failed = null;
+        for (ReplicaRouter.Replica replica = replicaRouter.choose(null); replica != null; replica = replicaRouter.choose(failed)) {
+            long start = System.nanoTime();
+            try {
+                EntityManager replicaEntityManager = getReplicaEntityManager(replica);
+                if (timeoutMillis > 0) {
+                    replicaEntityManager.setProperty(QUERY_TIMEOUT_HINT, remainingMillis(deadline));
+                }
+                T result = query.apply(replicaEntityManager);
+                replicaRouter.succeeded(replica, System.nanoTime() - start);
+                return result;
+            } catch (RuntimeException e) {
+                if (!isReplicaFailure(e)) {
+                    throw e;
+                }
+                replicaRouter.failed(replica);
+                logger.warnv(e, "Read from replica {0} failed, ejecting it", replica.getPersistenceUnitName());
+                if (failed == null) {
+                    failed = new ArrayList<>(2);
+                }
+                failed.add(replica);
+            } finally {
+                replicaRouter.release(replica);
+            }
+        }
+        if (timeoutMillis <= 0 || failed == null) {
+            return query.apply(entityManager);
+        }
+        entityManager.setProperty(QUERY_TIMEOUT_HINT, remainingMillis(deadline));
+        try {
+            return query.apply(entityManager);
+        } finally {
+            applyQueryTimeout(entityManager);
+        }
+    }
+
+    private long remainingMillis(long deadline) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new ExternalStoreUnavailableException("Read from " + model.getName()
+                    + " ran out of time failing over between replicas");
+        }
+        return remaining;
+    }
+
+    // failures that say the replica is down or slow, rather than that the read itself is wrong
+    private static boolean isReplicaFailure(RuntimeException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JDBCConnectionException
+                    || cause instanceof jakarta.persistence.QueryTimeoutException
+                    || cause instanceof org.hibernate.QueryTimeoutException
+                    || cause instanceof SQLTransientException
+                    || cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private EntityManager getReplicaEntityManager(ReplicaRouter.Replica replica) {
+        EntityManager replicaEntityManager = replicaEntityManagers.get(replica.getPersistenceUnitName());
+        if (replicaEntityManager == null) {
+            replicaEntityManager = ReadEntityManagers.create(session
+                    .getProvider(JpaConnectionProvider.class, replica.getPersistenceUnitName())
+                    .getEntityManager()
+                    .getEntityManagerFactory());
+            applyQueryTimeout(replicaEntityManager);
+            replicaEntityManagers.put(replica.getPersistenceUnitName(), replicaEntityManager);
+        }
+        return replicaEntityManager;
+    }
+
+    private EntityManager getShardEntityManager(int shard) {
+        EntityManager shardEntityManager = shardEntityManagers.get(shard);
+        if (shardEntityManager == null) {
+            shardEntityManager = ReadEntityManagers.create(shardRouter.getEntityManagerFactory(shard));
+            applyQueryTimeout(shardEntityManager);
+            shardEntityManagers.put(shard, shardEntityManager);
+        }
+        return shardEntityManager;
+    }
+
+    private <T> T readShard(int shard, Function<EntityManager, T> query) {
+        return shard == 0 ? read(query) : guarded(() -> query.apply(getShardEntityManager(shard)));
+    }
+
+    private <T> List<T> fanOut(BiFunction<Integer, EntityManager, T> query) {
+        return guarded(() -> shardRouter.fanOut((shard, em) -> {
+            applyQueryTimeout(em);
+            return query.apply(shard, em);
+        }));
+    }
+
+    private static ExternalUserEntity tagged(int shard, ExternalUserEntity user) {
+        if (user != null) {
+            user.setShardTag(ShardRouter.tag(shard));
+        }
+        return user;
+    }
+
+    private static List<ExternalUserEntity> tagged(int shard, List<ExternalUserEntity> users) {
+        users.forEach(user -> user.setShardTag(ShardRouter.tag(shard)));
+        return users;
+    }
+
+    /**
+     * Keycloak looks a login identifier up as a username and then as an email. Both questions are answered by one
+     * query on the first call and the answer to the second one is kept for the rest of the transaction. On a sharded
+     * store the query only runs on the shard the identifier would live on as a username, so only the username
+     * answer is complete.
+     */
+    protected LoginIdentifierResolution resolveLoginIdentifier(String loginIdentifier) {
+        String identifier = ExternalUserEntity.normalizeLoginIdentifier(loginIdentifier);
+        LoginIdentifierResolution resolution = resolvedLoginIdentifiers.get(identifier);
+        if (resolution != null) {
+            return resolution;
+        }
+        Function<EntityManager, List<ExternalUserEntity>> query = em -> em
+                .createNamedQuery("getUserByLoginIdentifier", ExternalUserEntity.class)
+                .setParameter("identifier", identifier)
+                .getResultList();
+        int shard = shardRouter != null ? shardRouter.shardOfUsername(identifier) : 0;
+        List<ExternalUserEntity> matches = tagged(shard, readShard(shard, query));
+        resolution = new LoginIdentifierResolution(
+                bestMatch(matches, loginIdentifier, ExternalUserEntity::getUsername),
+                bestMatch(matches, loginIdentifier, ExternalUserEntity::getEmail));
+        resolvedLoginIdentifiers.put(identifier, resolution);
+        return resolution;
+    }
+
+    private ExternalUserEntity findByEmail(String email) {
+        if (shardRouter == null) {
+            return resolveLoginIdentifier(email).byEmail();
+        }
+        String identifier = ExternalUserEntity.normalizeLoginIdentifier(email);
+        List<ExternalUserEntity> matches = fanOut((shard, em) -> tagged(shard, em
+                        .createNamedQuery("getUserByEmail", ExternalUserEntity.class)
+                        .setParameter("email", identifier)
+                        .getResultList()))
+                .stream()
+                .flatMap(List::stream)
+                .toList();
+        return bestMatch(matches, email, ExternalUserEntity::getEmail);
+    }
+
+    // an exact match wins over one that differs only in case
+    private static ExternalUserEntity bestMatch(List<ExternalUserEntity> matches, String loginIdentifier,
+                                                Function<ExternalUserEntity, String> field) {
+        ExternalUserEntity caseInsensitiveMatch = null;
+        for (ExternalUserEntity candidate : matches) {
+            String value = field.apply(candidate);
+            if (loginIdentifier.equals(value)) {
+                return candidate;
+            }
+            if (caseInsensitiveMatch == null && loginIdentifier.equalsIgnoreCase(value)) {
+                caseInsensitiveMatch = candidate;
+            }
+        }
+        return caseInsensitiveMatch;
+    }
+
+    /**
+     * Returns the adapter already created for this external user in the current transaction, or wraps and registers
+     * the entity so that later lookups by id, username or email reuse it.
+     */
+    private ExternalUserAdapter toAdapter(RealmModel realm, ExternalUserEntity entity) {
+        ExternalUserAdapter adapter = loadedUsers.get(entity.getId());
+        if (adapter == null) {
+            adapter = new ExternalUserAdapter(session, realm, model, entity, realmRoleResolver);
+            loadedUsers.put(entity.getId(), adapter);
+            loadedUsersByUsername.putIfAbsent(ExternalUserEntity.normalizeLoginIdentifier(entity.getUsername()), adapter);
+            loadedUsersByEmail.putIfAbsent(ExternalUserEntity.normalizeLoginIdentifier(entity.getEmail()), adapter);
+        }
+        return adapter;
+    }
+
+    private boolean isKnownAbsent(String loginIdentifier) {
+        if (membershipIndex != null && !membershipIndex.isStale() && !membershipIndex.mightContain(loginIdentifier)) {
+            logger.tracev("{0} is not in the membership index", loginIdentifier);
+            metrics.membershipIndexSkip();
+            return true;
+        }
+        return false;
+    }
+
+    private ExternalUserEntity findUser(ExternalUserCache.KeyType type, String value, Supplier<ExternalUserEntity> loader) {
+        if (userCache == null) {
+            return loader.get();
+        }
+        Optional<ExternalUserEntity> cached = userCache.get(type, value);
+        if (cached != null) {
+            logger.tracev("user {0} {1} served from cache", type, value);
+            if (cached.isPresent()) {
+                metrics.userCacheHit();
+            } else {
+                metrics.userCacheNegativeHit();
+            }
+            return cached.orElse(null);
+        }
+        metrics.userCacheMiss();
+        ExternalUserEntity entity;
+        try {
+            entity = loader.get();
+        } catch (ExternalStoreUnavailableException e) {
+            // an expired entry is better than failing the login while the store recovers
+            ExternalUserEntity stale = userCache.getStale(type, value);
+            if (stale == null) {
+                throw e;
+            }
+            logger.debugv("user {0} {1} served from an expired cache entry: {2}", type, value, e.getMessage());
+            metrics.userCacheStaleHit();
+            return stale;
+        }
+        if (entity != null) {
+            userCache.put(entity);
+        } else {
+            userCache.putMiss(type, value);
+        }
+        return entity;
     }
 
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
-        String search = params.get(UserModel.SEARCH);
-        TypedQuery<ExternalUserEntity> query = entityManager
-                .createNamedQuery("searchForUser", ExternalUserEntity.class);
-        String lower = search != null && !search.equals("*") ? search.toLowerCase() : "";
-        query.setParameter("search", "%" + lower + "%");
-        if (firstResult != null) {
-            query.setFirstResult(firstResult);
-        }
-        if (maxResults != null) {
-            query.setMaxResults(maxResults);
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        Stream<UserModel> users;
+        try {
+            UserSearchQuery search = UserSearchQuery.from(params, searchMode);
+            users = pageByUsername(realm, "search:" + search.getSignature(),
+                    search::create, firstResult, maxResults);
+        } catch (RuntimeException e) {
+            metrics.record(ProviderMetrics.Operation.SEARCH_FOR_USER, start, statements);
+            throw e;
         }
-        return query
-                .getResultStream()
-                .map(entity -> new ExternalUserAdapter(session, realm, model, entity, roleMappings));
+        return recordWhenConsumed(users, ProviderMetrics.Operation.SEARCH_FOR_USER, start, statements);
     }
 
     @Override
@@ -131,23 +552,182 @@ public class ExternalDBUserStorageProvider implements
 
     @Override
     public Stream<UserModel> getRoleMembersStream(RealmModel realm, RoleModel role, Integer firstResult, Integer maxResults) {
-        //1. find all external roles mapped to this realm role
-        Set<String> externalRoles = getExternalRolesMappedToRealmRole(role);
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        Stream<UserModel> users;
+        try {
+            //1. find all external roles mapped to this realm role
+            Set<String> externalRoles = roleMappingIndex.getExternalRoles(role.getName());
+            if (externalRoles.isEmpty()) {
+                metrics.record(ProviderMetrics.Operation.GET_ROLE_MEMBERS, start, statements);
+                return Stream.empty();
+            }
 
-        //2. find external users assigned any of those roles
-        TypedQuery<ExternalUserEntity> query = entityManager
-                .createNamedQuery("getAllUsersWithAnyRole", ExternalUserEntity.class);
+            //2. find external users assigned any of those roles
+            // keyed by the external roles rather than the realm role, so a changed role mapping starts over
+            users = pageByUsername(realm, "role:" + new TreeSet<>(externalRoles), (em, after) -> after == null
+                            ? em.createNamedQuery("getAllUsersWithAnyRole", ExternalUserEntity.class)
+                                    .setParameter("roles", externalRoles)
+                            : em.createNamedQuery("getAllUsersWithAnyRoleAfter", ExternalUserEntity.class)
+                                    .setParameter("roles", externalRoles)
+                                    .setParameter("after", after),
+                    firstResult, maxResults);
+        } catch (RuntimeException e) {
+            metrics.record(ProviderMetrics.Operation.GET_ROLE_MEMBERS, start, statements);
+            throw e;
+        }
+        return recordWhenConsumed(users, ProviderMetrics.Operation.GET_ROLE_MEMBERS, start, statements);
+    }
+
+    /**
+     * A streamed page runs its query and loads its users while the caller consumes it, so the operation is recorded
+     * once the stream is exhausted or closed, whichever comes first.
+     */
+    private Stream<UserModel> recordWhenConsumed(Stream<UserModel> users, ProviderMetrics.Operation operation,
+                                                 long start, int statements) {
+        AtomicBoolean recorded = new AtomicBoolean();
+        Runnable record = () -> {
+            if (recorded.compareAndSet(false, true)) {
+                metrics.record(operation, start, statements);
+            }
+        };
+        Spliterator<UserModel> source = users.spliterator();
+        Spliterator<UserModel> recording = new Spliterators.AbstractSpliterator<>(source.estimateSize(),
+                source.characteristics() & (Spliterator.ORDERED | Spliterator.NONNULL)) {
+            @Override
+            public boolean tryAdvance(Consumer<? super UserModel> action) {
+                if (source.tryAdvance(action)) {
+                    return true;
+                }
+                record.run();
+                return false;
+            }
+        };
+        return StreamSupport.stream(recording, false)
+                .onClose(users::close)
+                .onClose(record);
+    }
 
-        query.setParameter("roles", externalRoles);
-        if (firstResult != null) {
-            query.setFirstResult(firstResult);
+    /**
+     * Runs a query ordered by username. With keyset pagination, a page starting at a known position continues
+     * after the last username of an earlier page rather than skipping every preceding row. Reads without
+     * {@code maxResults} are fetched in pages of {@link #UNPAGED_READ_PAGE_SIZE} as the stream is consumed, each
+     * continuing after the last username of the one before, so that neither the whole result nor a bulkhead permit
+     * is held at once.
+     *
+     * @param queryAfter creates the query on an entity manager, restricted to usernames after its second argument
+     *                   unless that is null
+     */
+    private Stream<UserModel> pageByUsername(RealmModel realm, String signature,
+                                             BiFunction<EntityManager, String, TypedQuery<ExternalUserEntity>> queryAfter,
+                                             Integer firstResult, Integer maxResults) {
+        int first = firstResult == null ? 0 : firstResult;
+        SeekPositionCache.Position position = seekPositions != null && first > 0 ? seekPositions.floor(signature, first) : null;
+        if (position != null) {
+            logger.tracev("Page at {0} of {1} continues after {2} rows", first, signature, position.offset());
         }
+        int skip = position != null ? first - position.offset() : first;
+        String after = position != null ? position.lastKey() : null;
         if (maxResults != null) {
-            query.setMaxResults(maxResults);
+            return readPage(signature, queryAfter, first, after, skip, maxResults).stream()
+                    .map(entity -> toAdapter(realm, entity));
+        }
+        Spliterator<List<ExternalUserEntity>> pages = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int offset = first;
+            private int pageSkip = skip;
+            private String pageAfter = after;
+            private boolean last;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super List<ExternalUserEntity>> action) {
+                if (last) {
+                    return false;
+                }
+                List<ExternalUserEntity> users = readPage(signature, queryAfter, offset, pageAfter, pageSkip,
+                        UNPAGED_READ_PAGE_SIZE);
+                last = users.size() < UNPAGED_READ_PAGE_SIZE;
+                if (users.isEmpty()) {
+                    return false;
+                }
+                offset += users.size();
+                pageSkip = 0;
+                pageAfter = users.getLast().getUsername();
+                action.accept(users);
+                return true;
+            }
+        };
+        return StreamSupport.stream(pages, false)
+                .flatMap(List::stream)
+                .map(entity -> toAdapter(realm, entity));
+    }
+
+    /**
+     * Reads one page, materialized, so that a failing replica is detected while the read can still be retried and
+     * the bulkhead permit is released before the caller consumes the page.
+     */
+    private List<ExternalUserEntity> readPage(String signature,
+                                              BiFunction<EntityManager, String, TypedQuery<ExternalUserEntity>> queryAfter,
+                                              int first, String after, int skip, int maxResults) {
+        List<ExternalUserEntity> users = shardRouter != null
+                ? pageShards(queryAfter, after, skip, maxResults)
+                : read(em -> {
+                    TypedQuery<ExternalUserEntity> query = queryAfter.apply(em, after);
+                    if (skip > 0) {
+                        query.setFirstResult(skip);
+                    }
+                    return query.setMaxResults(maxResults).getResultList();
+                });
+        if (seekPositions != null && !users.isEmpty()) {
+            seekPositions.record(signature, first + users.size(), users.getLast().getUsername());
+        }
+        return users;
+    }
+
+    /**
+     * Each shard returns its first skip + max users after the given username, which together include the first
+     * skip + max users of the whole store. They are merged in the order of the C collation, which the shards must
+     * order usernames by; a shard page in any other order fails the read rather than returning a wrong page.
+     */
+    private List<ExternalUserEntity> pageShards(BiFunction<EntityManager, String, TypedQuery<ExternalUserEntity>> queryAfter,
+                                                String after, int skip, int maxResults) {
+        List<List<ExternalUserEntity>> pages = fanOut((shard, em) -> {
+            TypedQuery<ExternalUserEntity> query = queryAfter.apply(em, after)
+                    .setMaxResults((int) Math.min((long) skip + maxResults, Integer.MAX_VALUE));
+            return tagged(shard, requireByteOrder(shard, query.getResultList()));
+        });
+        return pages.stream()
+                .flatMap(List::stream)
+                .sorted(Comparator.comparing(ExternalUserEntity::getUsername, ExternalDBUserStorageProvider::compareCodePoints))
+                .skip(skip)
+                .limit(maxResults)
+                .toList();
+    }
+
+    private List<ExternalUserEntity> requireByteOrder(int shard, List<ExternalUserEntity> page) {
+        for (int i = 1; i < page.size(); i++) {
+            if (compareCodePoints(page.get(i - 1).getUsername(), page.get(i).getUsername()) > 0) {
+                throw new ModelException("Shard " + shard + " of " + model.getName() + " does not order usernames by "
+                        + "the C collation, declare user_entity.username with COLLATE \"C\"");
+            }
         }
-        return query
-                .getResultStream()
-                .map(entity -> new ExternalUserAdapter(session, realm, model, entity, roleMappings));
+        return page;
+    }
+
+    // the order of the C collation on a UTF-8 database, by code point rather than by UTF-16 unit as String.compareTo
+    static int compareCodePoints(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int left = a.codePointAt(i);
+            int right = b.codePointAt(j);
+            if (left != right) {
+                return Integer.compare(left, right);
+            }
+            i += Character.charCount(left);
+            j += Character.charCount(right);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
     }
 
     @Override
@@ -196,57 +776,165 @@ public class ExternalDBUserStorageProvider implements
 
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        if (!(credentialInput instanceof UserCredentialModel)) {
-            logger.debug("Expected instance of UserCredentialModel for CredentialInput");
-            return false;
-        } else if (credentialInput.getChallengeResponse() == null) {
-            logger.debugv("Input password was null for user {0} ", user.getUsername());
-            return false;
-        } else {
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        try {
+            if (!(credentialInput instanceof UserCredentialModel)) {
+                logger.debug("Expected instance of UserCredentialModel for CredentialInput");
+                return false;
+            } else if (credentialInput.getChallengeResponse() == null) {
+                logger.debugv("Input password was null for user {0} ", user.getUsername());
+                return false;
+            }
+            String throttledUser = null;
+            String source = null;
+            if (passwordVerificationThrottle != null) {
+                // scoped to the component, as usernames are only unique within a realm
+                throttledUser = model.getId() + ':' + ExternalUserEntity.normalizeLoginIdentifier(user.getUsername());
+                source = getRemoteAddress();
+                if (isThrottled(throttledUser, source)) {
+                    return false;
+                }
+            }
             String hashedUserPassword = getPassword(user);
             if (hashedUserPassword == null) {
                 logger.debugv("No hashedUserPassword stored for user {0} ", user.getUsername());
                 return false;
-            } else {
-                return BCrypt.checkpw(credentialInput.getChallengeResponse(), hashedUserPassword);
             }
+            boolean verified = passwordVerificationEngine.verify(credentialInput.getChallengeResponse(), hashedUserPassword);
+            if (!verified && passwordVerificationThrottle != null) {
+                passwordVerificationThrottle.failed(throttledUser, source);
+            }
+            return verified;
+        } finally {
+            metrics.record(ProviderMetrics.Operation.IS_VALID, start, statements);
         }
     }
 
+    /**
+     * Refused guesses are not counted as failures, so a refusal ends within a half-life or two of the last guess.
+     */
+    private boolean isThrottled(String throttledUser, String source) {
+        switch (passwordVerificationThrottle.check(throttledUser, source)) {
+            case USER_THROTTLED -> {
+                logger.debugv("Password verification for {0} throttled after too many failures", throttledUser);
+                metrics.passwordVerificationThrottledByUser();
+                return true;
+            }
+            case SOURCE_THROTTLED -> {
+                logger.debugv("Password verification from {0} throttled after too many failures", source);
+                metrics.passwordVerificationThrottledBySource();
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private String getRemoteAddress() {
+        KeycloakContext context = session.getContext();
+        ClientConnection connection = context != null ? context.getConnection() : null;
+        return connection != null ? connection.getRemoteAddr() : null;
+    }
+
+    /**
+     * Users are loaded without their password hash, which is read by id only when a password is validated. With
+     * the user-cache policy the hash is then kept in the user's Keycloak cache entry for later logins.
+     */
     protected String getPassword(UserModel userModel) {
-        String password = null;
-        if (userModel instanceof CachedUserModel) {
-            logger.trace("credentials fetched from cache");
-            password = (String)((CachedUserModel) userModel).getCachedWith().get(PASSWORD_CACHE_KEY);
-        } else if (userModel instanceof ExternalUserAdapter) {
-            logger.trace("credentials fetched from model");
-            password = ((ExternalUserAdapter)userModel).getPassword();
+        CachedUserModel cachedUser = userModel instanceof CachedUserModel cached ? cached : null;
+        if (cachedUser != null) {
+            String password = (String) cachedUser.getCachedWith().get(PASSWORD_CACHE_KEY);
+            if (password != null) {
+                logger.trace("credentials fetched from cache");
+                metrics.credentialCacheHit();
+                return password;
+            }
+            metrics.credentialCacheMiss();
+        }
+        String externalId = getExternalId(userModel);
+        if (externalId == null) {
+            return null;
+        }
+        logger.trace("credentials fetched from external store");
+        String password = loadPassword(externalId);
+        if (password != null && cachedUser != null && passwordCaching == ProviderConfig.PasswordCaching.USER_CACHE) {
+            cachedUser.getCachedWith().put(PASSWORD_CACHE_KEY, password);
         }
         return password;
     }
 
-    @Override
-    public void onCache(RealmModel realm, CachedUserModel user, UserModel delegate) {
-        String password = ((ExternalUserAdapter)delegate).getPassword();
-        if (password != null) {
-            logger.trace("caching credentials");
-            user.getCachedWith().put(PASSWORD_CACHE_KEY, password);
+    // imported users keep the external id in an attribute, other users of this provider in their storage id
+    private String getExternalId(UserModel userModel) {
+        if (StorageId.isLocalStorage(userModel.getId())) {
+            return model.getId().equals(userModel.getFederationLink())
+                    ? userModel.getFirstAttribute(ExternalUserImporter.EXTERNAL_ID_ATTRIBUTE)
+                    : null;
+        }
+        StorageId storageId = new StorageId(userModel.getId());
+        return model.getId().equals(storageId.getProviderId()) ? storageId.getExternalId() : null;
+    }
+
+    private String loadPassword(String externalId) {
+        int shard = shardRouter != null ? ShardRouter.shardOfId(externalId) : 0;
+        if (shard > 0 && shard >= shardRouter.size()) {
+            return null;
         }
+        String id = shard > 0 ? ShardRouter.untag(externalId) : externalId;
+        List<String> passwords = readShard(shard, em -> em
+                .createNamedQuery("getPasswordById", String.class)
+                .setParameter("id", id)
+                .getResultList());
+        return passwords.isEmpty() ? null : passwords.getFirst();
     }
 
     @Override
     public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        long start = System.nanoTime();
+        int statements = StatementCounter.current();
+        try {
+            long count = switch (countMode) {
+                case CACHED -> userCountCache.get(this::countUsers);
+                case ESTIMATED -> userCountCache.get(this::estimateUsers);
+                default -> countUsers();
+            };
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        } finally {
+            metrics.record(ProviderMetrics.Operation.GET_USERS_COUNT, start, statements);
+        }
+    }
+
+    protected long countUsers() {
+        return sumShards(ExternalDBUserStorageProvider::countRows);
+    }
+
+    /**
+     * Reads the planner's row estimate, which is kept up to date by autovacuum and analyze. Tables that were never
+     * analyzed have no estimate and are counted instead.
+     */
+    protected long estimateUsers() {
+        return sumShards(em -> {
+            Object estimate = em
+                    .createNativeQuery("select cast(reltuples as bigint) from pg_class where oid = cast('user_entity' as regclass)")
+                    .getSingleResult();
+            long users = ((Number) estimate).longValue();
+            return users >= 0 ? users : countRows(em);
+        });
+    }
+
+    private static long countRows(EntityManager entityManager) {
         Object count = entityManager.createNamedQuery("getUserCount")
                 .getSingleResult();
-        return ((Number)count).intValue();
+        return ((Number)count).longValue();
     }
 
-    private Set<String> getExternalRolesMappedToRealmRole(RoleModel role) {
-        return roleMappings
-                .entrySet()
-                .stream()
-                .filter(entry -> entry.getValue().contains(role.getName()))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
+    private long sumShards(Function<EntityManager, Long> count) {
+        if (shardRouter == null) {
+            return read(count);
+        }
+        return fanOut((shard, em) -> count.apply(em)).stream()
+                .mapToLong(Long::longValue)
+                .sum();
     }
 }
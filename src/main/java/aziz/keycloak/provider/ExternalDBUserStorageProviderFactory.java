@@ -1,30 +1,150 @@
 package aziz.keycloak.provider;
 
+import aziz.keycloak.changefeed.PostgresUserChangeFeed;
+import aziz.keycloak.changefeed.UserChange;
+import aziz.keycloak.changefeed.UserChangeFeed;
+import aziz.keycloak.batch.UserBatchLoader;
+import aziz.keycloak.cache.ExternalUserCache;
+import aziz.keycloak.cache.MembershipIndex;
+import aziz.keycloak.cache.SeekPositionCache;
+import aziz.keycloak.credential.BCryptPasswordVerifier;
+import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.credential.PasswordVerificationEngine;
+import aziz.keycloak.credential.PasswordVerificationThrottle;
+import aziz.keycloak.metrics.ProviderMetrics;
+import aziz.keycloak.resilience.ExternalStoreGuard;
+import aziz.keycloak.routing.ReplicaRouter;
+import aziz.keycloak.routing.ShardRouter;
+import aziz.keycloak.search.UserSearchQuery;
+import aziz.keycloak.sync.ExternalUserImporter;
 import jakarta.persistence.EntityManager;
+import io.micrometer.core.instrument.Metrics;
+import jakarta.persistence.TypedQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class ExternalDBUserStorageProviderFactory implements UserStorageProviderFactory<ExternalDBUserStorageProvider>,
+        ImportSynchronization {
+    private static final Logger logger = Logger.getLogger(ExternalDBUserStorageProviderFactory.class);
 
-public class ExternalDBUserStorageProviderFactory implements UserStorageProviderFactory<ExternalDBUserStorageProvider> {
     public static final String PROVIDER_ID = "external-user-provider";
 
     protected static final List<ProviderConfigProperty> configProperties;
 
     public static final String PERSISTENCE_UNIT_PROPERTY = "persistence-unit-name";
+    public static final String REPLICA_PERSISTENCE_UNITS_PROPERTY = "replica-persistence-units";
+    public static final String SHARD_PERSISTENCE_UNITS_PROPERTY = "shard-persistence-units";
     public static final String ROLE_MAPPINGS_PROPERTY = "role-mappings";
+    public static final String PAGINATION_MODE_PROPERTY = "pagination-mode";
+    public static final String SEARCH_MODE_PROPERTY = "search-mode";
+    public static final String COUNT_MODE_PROPERTY = "count-mode";
+    public static final String COUNT_REFRESH_INTERVAL_PROPERTY = "count-refresh-interval";
+    public static final String CHANGE_FEED_PROPERTY = "change-feed";
+    public static final String QUERY_TIMEOUT_PROPERTY = "query-timeout";
+    public static final String MAX_CONCURRENT_QUERIES_PROPERTY = "max-concurrent-queries";
+    public static final String PASSWORD_CACHING_PROPERTY = "password-caching";
+
+    // highest created_at imported by a sync, kept in the component's config but not shown in the admin console
+    public static final String SYNC_WATERMARK_PROPERTY = "sync-watermark";
+
+    // stored by synchronization through component updates, and not part of the configuration component state is built from
+    protected static final Set<String> SYNC_STATE_PROPERTIES = Set.of(SYNC_WATERMARK_PROPERTY, "lastSync");
+
+    public static final String PASSWORD_VERIFIER_MAX_CONCURRENCY = "passwordVerifierMaxConcurrency";
+    public static final String PASSWORD_VERIFIER_QUEUE_DEPTH = "passwordVerifierQueueDepth";
+    public static final String PASSWORD_VERIFIER_WAIT_TIMEOUT_MILLIS = "passwordVerifierWaitTimeoutMillis";
+    public static final String PASSWORD_THROTTLE_USER_FAILURES = "passwordThrottleUserFailures";
+    public static final String PASSWORD_THROTTLE_SOURCE_FAILURES = "passwordThrottleSourceFailures";
+    public static final String PASSWORD_THROTTLE_HALF_LIFE_MILLIS = "passwordThrottleHalfLifeMillis";
+    public static final String PASSWORD_THROTTLE_COUNTERS = "passwordThrottleCounters";
+    public static final String USER_CACHE_TTL_MILLIS = "userCacheTtlMillis";
+    public static final String USER_CACHE_NEGATIVE_TTL_MILLIS = "userCacheNegativeTtlMillis";
+    public static final String USER_CACHE_MAX_ENTRIES = "userCacheMaxEntries";
+    public static final String USER_CACHE_MAX_BYTES = "userCacheMaxBytes";
+    public static final String MEMBERSHIP_INDEX_ENABLED = "membershipIndexEnabled";
+    public static final String MEMBERSHIP_INDEX_FALSE_POSITIVE_RATE = "membershipIndexFalsePositiveRate";
+    public static final String MEMBERSHIP_INDEX_MAX_BYTES = "membershipIndexMaxBytes";
+    public static final String MEMBERSHIP_INDEX_REFRESH_INTERVAL_MILLIS = "membershipIndexRefreshIntervalMillis";
+    public static final String MEMBERSHIP_INDEX_MAX_STALENESS_MILLIS = "membershipIndexMaxStalenessMillis";
+    public static final String SYNC_CHUNK_SIZE = "syncChunkSize";
+    public static final String SYNC_WORKERS = "syncWorkers";
+    public static final String CHANGE_FEED_CHANNEL = "changeFeedChannel";
+    public static final String USER_BATCH_WINDOW_MICROS = "userBatchWindowMicros";
+    public static final String USER_BATCH_MAX_SIZE = "userBatchMaxSize";
+    public static final String USER_BATCH_MAX_WAIT_MILLIS = "userBatchMaxWaitMillis";
+    public static final String REPLICA_EJECT_MILLIS = "replicaEjectMillis";
+    public static final String SHARD_FAN_OUT_THREADS = "shardFanOutThreads";
+    public static final String BULKHEAD_WAIT_MILLIS = "bulkheadWaitMillis";
+    public static final String CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+    public static final String CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+    public static final String CIRCUIT_BREAKER_SLOW_CALL_MILLIS = "circuitBreakerSlowCallMillis";
+    public static final String CIRCUIT_BREAKER_OPEN_MILLIS = "circuitBreakerOpenMillis";
+    public static final String WARM_UP_ENABLED = "warmUpEnabled";
+    public static final String WARM_UP_CONNECTIONS = "warmUpConnections";
+    public static final String WARM_UP_PASSWORD_VERIFICATIONS = "warmUpPasswordVerifications";
+    public static final String WARM_UP_PRELOAD_USERS = "warmUpPreloadUsers";
+
+    // users committed late with an older created_at than the watermark are still picked up by the next changed sync
+    protected static final long CHANGED_SYNC_OVERLAP_MILLIS = 60000L;
+
+    // matches no password, verified at the cost pgcrypto's gen_salt('bf') uses by default
+    protected static final String WARM_UP_PASSWORD_HASH = "$2a$06$WarmUpWarmUpWarmUpWarmUpWarmUpWarmUpWarmUpWarmUpWarmU";
 
     protected static final String PERSISTENCE_UNIT_LABEL = "Persistence Unit Name";
+    protected static final String REPLICA_PERSISTENCE_UNITS_LABEL = "Replica Persistence Units";
+    protected static final String SHARD_PERSISTENCE_UNITS_LABEL = "Shard Persistence Units";
     protected static final String ROLE_MAPPINGS_LABEL = "Role Mappings";
+    protected static final String PAGINATION_MODE_LABEL = "Pagination Mode";
+    protected static final String SEARCH_MODE_LABEL = "Search Mode";
+    protected static final String COUNT_MODE_LABEL = "Count Mode";
+    protected static final String COUNT_REFRESH_INTERVAL_LABEL = "Count Refresh Interval";
+    protected static final String CHANGE_FEED_LABEL = "Change Feed";
+    protected static final String QUERY_TIMEOUT_LABEL = "Query Timeout";
+    protected static final String MAX_CONCURRENT_QUERIES_LABEL = "Max Concurrent Queries";
+    protected static final String PASSWORD_CACHING_LABEL = "Password Hash Caching";
 
     protected static final String PERSISTENCE_UNIT_PROPERTY_HELP_TEXT =
         "The persistence unit name is used to specify the configuration details for acquiring an entity manager. " +
@@ -32,11 +152,58 @@ public class ExternalDBUserStorageProviderFactory implements UserStorageProvider
         "This name corresponds to the <persistence-unit> element in the persistence.xml file, which should be located " +
         "in the META-INF directory of your provider.";
 
+    protected static final String REPLICA_PERSISTENCE_UNITS_HELP_TEXT =
+        "Persistence units of read replicas of the external store. Lookups, searches and counts are spread across " +
+        "them, preferring the replica with the fewest reads in flight and the lowest recent latency. A replica that " +
+        "fails is skipped for a while, and reads fall back to the persistence unit above when no replica is left. " +
+        "Leave empty to read from the persistence unit above only.";
+
+    protected static final String SHARD_PERSISTENCE_UNITS_HELP_TEXT =
+        "Persistence units of further shards of the external store, after the persistence unit above, which is the " +
+        "first shard. Each user must be stored on the shard selected by the hash of its lowercase username. Lookups " +
+        "by username and id go to a single shard, the others query all shards in parallel. The list must not change " +
+        "once users are placed, and cannot be combined with replicas, a change feed or imported users.";
+
     protected static final String ROLE_MAPPINGS_HELP_TEXT =
         "Define a set of key value pairs to map roles from the external storage into realm roles. " +
         "The key is the role name in the external storage, and the value is the name " +
         "of the realm role in this realm.";
 
+    protected static final String PAGINATION_MODE_HELP_TEXT =
+        "How pages of user searches and role members are fetched. 'offset' skips the preceding rows on every page. " +
+        "'keyset' continues after the last username of a previously fetched page, so deep pages cost about as much " +
+        "as the first one.";
+
+    protected static final String SEARCH_MODE_HELP_TEXT =
+        "How search terms without wildcards match usernames, emails and names. 'prefix' matches values starting " +
+        "with the term and uses the text_pattern_ops indexes. 'trigram' matches values containing the term and uses " +
+        "the pg_trgm indexes. Both are created by the external store's init script.";
+
+    protected static final String COUNT_MODE_HELP_TEXT =
+        "How the number of users shown in the admin console is obtained. 'exact' counts the users table on every " +
+        "request. 'cached' counts it at most once per refresh interval on each node. 'estimated' reads PostgreSQL's " +
+        "row estimate for the users table instead, also at most once per refresh interval.";
+
+    protected static final String COUNT_REFRESH_INTERVAL_HELP_TEXT =
+        "Seconds a cached or estimated user count is served before it is refreshed.";
+
+    protected static final String CHANGE_FEED_HELP_TEXT =
+        "How changes made to the external store by other systems are detected. 'none' relies on the cache policy " +
+        "alone. 'postgres' listens for notifications sent by triggers on the external store's tables and evicts " +
+        "exactly the changed users from Keycloak's and the provider's caches.";
+
+    protected static final String QUERY_TIMEOUT_HELP_TEXT =
+        "Seconds a query on the external store may run before it is cancelled. 0 lets queries run indefinitely.";
+
+    protected static final String MAX_CONCURRENT_QUERIES_HELP_TEXT =
+        "Calls to the external store allowed to run at once on each node. Further calls wait briefly and then fail, " +
+        "so a slow store cannot hold every Keycloak worker. 0 removes the limit.";
+
+    protected static final String PASSWORD_CACHING_HELP_TEXT =
+        "Password hashes are only read from the external store to validate a password. 'user-cache' keeps the hash " +
+        "in Keycloak's user cache entry once read, so later logins of the user skip the query. 'none' reads it on " +
+        "every login and keeps no hash in memory.";
+
     static {
         configProperties = ProviderConfigurationBuilder.create()
                 .property()
@@ -48,25 +215,366 @@ public class ExternalDBUserStorageProviderFactory implements UserStorageProvider
                 .required(true)
                 .add()
 
+                .property()
+                .name(REPLICA_PERSISTENCE_UNITS_PROPERTY)
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .label(REPLICA_PERSISTENCE_UNITS_LABEL)
+                .helpText(REPLICA_PERSISTENCE_UNITS_HELP_TEXT)
+                .add()
+
+                .property()
+                .name(SHARD_PERSISTENCE_UNITS_PROPERTY)
+                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                .label(SHARD_PERSISTENCE_UNITS_LABEL)
+                .helpText(SHARD_PERSISTENCE_UNITS_HELP_TEXT)
+                .add()
+
                 .property()
                 .name(ROLE_MAPPINGS_PROPERTY)
                 .type(ProviderConfigProperty.MAP_TYPE)
                 .label(ROLE_MAPPINGS_LABEL)
                 .helpText(ROLE_MAPPINGS_HELP_TEXT)
                 .add()
+
+                .property()
+                .name(PAGINATION_MODE_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label(PAGINATION_MODE_LABEL)
+                .helpText(PAGINATION_MODE_HELP_TEXT)
+                .options("offset", "keyset")
+                .defaultValue("offset")
+                .add()
+
+                .property()
+                .name(SEARCH_MODE_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label(SEARCH_MODE_LABEL)
+                .helpText(SEARCH_MODE_HELP_TEXT)
+                .options("trigram", "prefix")
+                .defaultValue("trigram")
+                .add()
+
+                .property()
+                .name(COUNT_MODE_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label(COUNT_MODE_LABEL)
+                .helpText(COUNT_MODE_HELP_TEXT)
+                .options("exact", "cached", "estimated")
+                .defaultValue("exact")
+                .add()
+
+                .property()
+                .name(COUNT_REFRESH_INTERVAL_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label(COUNT_REFRESH_INTERVAL_LABEL)
+                .helpText(COUNT_REFRESH_INTERVAL_HELP_TEXT)
+                .defaultValue("60")
+                .add()
+
+                .property()
+                .name(CHANGE_FEED_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label(CHANGE_FEED_LABEL)
+                .helpText(CHANGE_FEED_HELP_TEXT)
+                .options("none", "postgres")
+                .defaultValue("none")
+                .add()
+
+                .property()
+                .name(QUERY_TIMEOUT_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label(QUERY_TIMEOUT_LABEL)
+                .helpText(QUERY_TIMEOUT_HELP_TEXT)
+                .defaultValue("5")
+                .add()
+
+                .property()
+                .name(MAX_CONCURRENT_QUERIES_PROPERTY)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label(MAX_CONCURRENT_QUERIES_LABEL)
+                .helpText(MAX_CONCURRENT_QUERIES_HELP_TEXT)
+                .defaultValue("20")
+                .add()
+
+                .property()
+                .name(PASSWORD_CACHING_PROPERTY)
+                .type(ProviderConfigProperty.LIST_TYPE)
+                .label(PASSWORD_CACHING_LABEL)
+                .helpText(PASSWORD_CACHING_HELP_TEXT)
+                .options("user-cache", "none")
+                .defaultValue("user-cache")
+                .add()
                 .build();
     }
 
+    protected PasswordVerificationEngine passwordVerificationEngine;
+
+    // shared by all components of the node; null when neither threshold is set
+    protected PasswordVerificationThrottle passwordVerificationThrottle;
+
+    protected ProviderMetrics metrics;
+
+    // user snapshot caches by component id
+    protected final Map<String, ExternalUserCache> userCaches = new ConcurrentHashMap<>();
+
+    protected long userCacheTtlMillis;
+    protected long userCacheNegativeTtlMillis;
+    protected int userCacheMaxEntries;
+    protected long userCacheMaxBytes;
+
+    // membership indexes by component id, built and refreshed in the background
+    protected final Map<String, MembershipIndex> membershipIndexes = new ConcurrentHashMap<>();
+
+    protected boolean membershipIndexEnabled;
+    protected double membershipIndexFalsePositiveRate;
+    protected long membershipIndexMaxBytes;
+    protected long membershipIndexRefreshIntervalMillis;
+    protected long membershipIndexMaxStalenessMillis;
+
+    protected ScheduledExecutorService membershipIndexRefresher;
+
+    protected int syncChunkSize;
+    protected int syncWorkers;
+
+    // running change feeds by component id
+    protected final Map<String, UserChangeFeed> changeFeeds = new ConcurrentHashMap<>();
+
+    protected String changeFeedChannel;
+
+    protected KeycloakSessionFactory sessionFactory;
+
+    // lookup by id batch loaders by component id
+    protected final Map<String, UserBatchLoader> batchLoaders = new ConcurrentHashMap<>();
+
+    protected long userBatchWindowMicros;
+    protected int userBatchMaxSize;
+    protected long userBatchMaxWaitMillis;
+
+    // replica routers by component id, for components with replica persistence units
+    protected final Map<String, ReplicaRouter> replicaRouters = new ConcurrentHashMap<>();
+
+    protected long replicaEjectMillis;
+
+    // shard routers by component id, for sharded components
+    protected final Map<String, ShardRouter> shardRouters = new ConcurrentHashMap<>();
+
+    // runs the per-shard queries of all sharded components
+    protected ExecutorService shardFanOutExecutor;
+
+    // bulkheads and circuit breakers by component id
+    protected final Map<String, ExternalStoreGuard> storeGuards = new ConcurrentHashMap<>();
+
+    protected long bulkheadWaitMillis;
+    protected int circuitBreakerWindowSize;
+    protected double circuitBreakerFailureRate;
+    protected long circuitBreakerSlowCallMillis;
+    protected long circuitBreakerOpenMillis;
+
+    protected boolean warmUpEnabled;
+    protected int warmUpConnections;
+    protected int warmUpPasswordVerifications;
+    protected int warmUpPreloadUsers;
+
+    // parsed configuration by component id
+    protected final Map<String, ProviderConfig> providerConfigs = new ConcurrentHashMap<>();
+
+    @Override
+    public void init(Config.Scope config) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        metrics = new ProviderMetrics(Metrics.globalRegistry);
+        passwordVerificationEngine = new PasswordVerificationEngine(
+                new BCryptPasswordVerifier(),
+                config.getInt(PASSWORD_VERIFIER_MAX_CONCURRENCY, processors),
+                config.getInt(PASSWORD_VERIFIER_QUEUE_DEPTH, processors * 16),
+                config.getLong(PASSWORD_VERIFIER_WAIT_TIMEOUT_MILLIS, 5000L),
+                metrics);
+        // both limits are opt-in: a user limit lets anyone lock out a known user, and the source is the connection's
+        // remote address, which behind a proxy without proxy-headers is the proxy's and shared by every client
+        int throttleUserFailures = config.getInt(PASSWORD_THROTTLE_USER_FAILURES, 0);
+        int throttleSourceFailures = config.getInt(PASSWORD_THROTTLE_SOURCE_FAILURES, 0);
+        if (throttleUserFailures > 0 || throttleSourceFailures > 0) {
+            passwordVerificationThrottle = new PasswordVerificationThrottle(
+                    config.getInt(PASSWORD_THROTTLE_COUNTERS, 65536),
+                    throttleUserFailures,
+                    throttleSourceFailures,
+                    config.getLong(PASSWORD_THROTTLE_HALF_LIFE_MILLIS, 60000L));
+        }
+
+        userCacheTtlMillis = config.getLong(USER_CACHE_TTL_MILLIS, 0L);
+        userCacheNegativeTtlMillis = config.getLong(USER_CACHE_NEGATIVE_TTL_MILLIS, 5000L);
+        userCacheMaxEntries = config.getInt(USER_CACHE_MAX_ENTRIES, 10000);
+        userCacheMaxBytes = config.getLong(USER_CACHE_MAX_BYTES, 32L * 1024 * 1024);
+
+        membershipIndexEnabled = config.getBoolean(MEMBERSHIP_INDEX_ENABLED, false);
+        membershipIndexFalsePositiveRate = Double.parseDouble(config.get(MEMBERSHIP_INDEX_FALSE_POSITIVE_RATE, "0.01"));
+        membershipIndexMaxBytes = config.getLong(MEMBERSHIP_INDEX_MAX_BYTES, 16L * 1024 * 1024);
+        membershipIndexRefreshIntervalMillis = config.getLong(MEMBERSHIP_INDEX_REFRESH_INTERVAL_MILLIS, 60000L);
+        membershipIndexMaxStalenessMillis = config.getLong(MEMBERSHIP_INDEX_MAX_STALENESS_MILLIS,
+                2 * membershipIndexRefreshIntervalMillis);
+
+        syncChunkSize = config.getInt(SYNC_CHUNK_SIZE, 500);
+        syncWorkers = config.getInt(SYNC_WORKERS, Math.min(4, processors));
+
+        changeFeedChannel = config.get(CHANGE_FEED_CHANNEL, "external_user_changes");
+
+        userBatchWindowMicros = config.getLong(USER_BATCH_WINDOW_MICROS, 0L);
+        userBatchMaxSize = config.getInt(USER_BATCH_MAX_SIZE, 100);
+        userBatchMaxWaitMillis = config.getLong(USER_BATCH_MAX_WAIT_MILLIS, 10000L);
+
+        replicaEjectMillis = config.getLong(REPLICA_EJECT_MILLIS, 30000L);
+
+        bulkheadWaitMillis = config.getLong(BULKHEAD_WAIT_MILLIS, 100L);
+        circuitBreakerWindowSize = config.getInt(CIRCUIT_BREAKER_WINDOW_SIZE, 20);
+        if (circuitBreakerWindowSize < 1) {
+            // guards are created per component on first use, so a bad window would only fail logins later
+            throw new IllegalArgumentException(CIRCUIT_BREAKER_WINDOW_SIZE + " must be at least 1: " + circuitBreakerWindowSize);
+        }
+        circuitBreakerFailureRate = Double.parseDouble(config.get(CIRCUIT_BREAKER_FAILURE_RATE, "0.5"));
+        circuitBreakerSlowCallMillis = config.getLong(CIRCUIT_BREAKER_SLOW_CALL_MILLIS, 2000L);
+        circuitBreakerOpenMillis = config.getLong(CIRCUIT_BREAKER_OPEN_MILLIS, 10000L);
+
+        warmUpEnabled = config.getBoolean(WARM_UP_ENABLED, false);
+        warmUpConnections = config.getInt(WARM_UP_CONNECTIONS, 4);
+        warmUpPasswordVerifications = config.getInt(WARM_UP_PASSWORD_VERIFICATIONS, 20);
+        warmUpPreloadUsers = config.getInt(WARM_UP_PRELOAD_USERS, 0);
+
+        shardFanOutExecutor = Executors.newFixedThreadPool(config.getInt(SHARD_FAN_OUT_THREADS, processors * 2), runnable -> {
+            Thread thread = new Thread(runnable, "external-user-shard-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        sessionFactory = factory;
+        // role mappings name realm roles, which were resolved to ids when their index was compiled
+        factory.register(event -> {
+            if (event instanceof RoleContainerModel.RoleRemovedEvent removed && !removed.getRole().isClientRole()) {
+                discardRoleMappingIndexes(removed.getRole().getContainerId(), removed.getRole().getName());
+            } else if (event instanceof RoleModel.RoleNameChangeEvent renamed && renamed.getClientId() == null) {
+                // a mapping may name the role by its previous name, or by its new one and have found no role so far
+                discardRoleMappingIndexes(renamed.getRealm().getId(), renamed.getPreviousName());
+                discardRoleMappingIndexes(renamed.getRealm().getId(), renamed.getNewName());
+            } else if (event instanceof PostMigrationEvent && warmUpEnabled) {
+                // components can only be read once Keycloak's database is migrated
+                warmUp(factory);
+            }
+        });
+        if (membershipIndexEnabled) {
+            membershipIndexRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "external-user-membership-index");
+                thread.setDaemon(true);
+                return thread;
+            });
+            membershipIndexRefresher.scheduleWithFixedDelay(() -> refreshMembershipIndexes(factory),
+                    0, membershipIndexRefreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
     @Override
     public ExternalDBUserStorageProvider create(KeycloakSession keycloakSession, ComponentModel componentModel) {
+        ProviderConfig providerConfig = getProviderConfig(componentModel);
+        startChangeFeed(keycloakSession, componentModel, providerConfig);
         return new ExternalDBUserStorageProvider(
                 keycloakSession,
                 componentModel,
-                getEntityManager(keycloakSession, componentModel),
-                ProviderConfigUtil.getConfigMap(componentModel, ROLE_MAPPINGS_PROPERTY)
+                getEntityManager(keycloakSession, providerConfig),
+                providerConfig.getRoleMappingIndex(keycloakSession, componentModel),
+                passwordVerificationEngine,
+                getUserCache(componentModel),
+                membershipIndexes.get(componentModel.getId()),
+                providerConfig.getSeekPositionCache(),
+                providerConfig.getSearchMode(),
+                providerConfig.getCountMode(),
+                providerConfig.getUserCountCache(),
+                metrics,
+                getBatchLoader(componentModel),
+                getReplicaRouter(componentModel, providerConfig),
+                getShardRouter(keycloakSession, componentModel, providerConfig),
+                getStoreGuard(componentModel, providerConfig),
+                providerConfig.getPasswordCaching(),
+                passwordVerificationThrottle
         );
     }
 
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        if (!onlySyncStateChanged(oldModel, newModel)) {
+            discardComponentState(oldModel.getId());
+        }
+    }
+
+    protected static boolean onlySyncStateChanged(ComponentModel oldModel, ComponentModel newModel) {
+        Set<String> properties = new HashSet<>(oldModel.getConfig().keySet());
+        properties.addAll(newModel.getConfig().keySet());
+        properties.removeAll(SYNC_STATE_PROPERTIES);
+        for (String property : properties) {
+            if (!Objects.equals(oldModel.getConfig().get(property), newModel.getConfig().get(property))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        discardComponentState(model.getId());
+    }
+
+    protected void discardRoleMappingIndexes(String realmId, String realmRoleName) {
+        providerConfigs.values().forEach(providerConfig -> providerConfig.discardRoleMappingIndex(realmId, realmRoleName));
+    }
+
+    // everything kept per component, rebuilt from its configuration when next needed
+    protected void discardComponentState(String componentId) {
+        closeChangeFeed(componentId);
+        userCaches.remove(componentId);
+        membershipIndexes.remove(componentId);
+        providerConfigs.remove(componentId);
+        batchLoaders.remove(componentId);
+        replicaRouters.remove(componentId);
+        shardRouters.remove(componentId);
+        storeGuards.remove(componentId);
+    }
+
+    @Override
+    public void close() {
+        changeFeeds.keySet().forEach(this::closeChangeFeed);
+        if (membershipIndexRefresher != null) {
+            membershipIndexRefresher.shutdownNow();
+        }
+        if (passwordVerificationEngine != null) {
+            passwordVerificationEngine.close();
+        }
+        if (shardFanOutExecutor != null) {
+            shardFanOutExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        logger.infov("Full sync of users from component {0} started", model.getName());
+        ExternalUserImporter importer = createImporter(sessionFactory, realmId, model);
+        SynchronizationResult result = importer.importUsers(null);
+        saveSyncWatermark(sessionFactory, realmId, model, importer.getWatermark());
+        logger.infov("Full sync of users from component {0} finished: {1}", model.getName(), result.getStatus());
+        return result;
+    }
+
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+                                           UserStorageProviderModel model) {
+        String watermark = model.get(SYNC_WATERMARK_PROPERTY);
+        long since = watermark != null ? Long.parseLong(watermark) : lastSync == null ? 0L : lastSync.getTime();
+        logger.debugv("Changed sync of users from component {0} started, watermark {1}", model.getName(), since);
+        ExternalUserImporter importer = createImporter(sessionFactory, realmId, model);
+        SynchronizationResult result = importer.importUsers(since - CHANGED_SYNC_OVERLAP_MILLIS);
+        saveSyncWatermark(sessionFactory, realmId, model, importer.getWatermark());
+        logger.debugv("Changed sync of users from component {0} finished: {1}", model.getName(), result.getStatus());
+        return result;
+    }
+
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
         return configProperties;
@@ -81,7 +589,17 @@ public class ExternalDBUserStorageProviderFactory implements UserStorageProvider
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel config)
             throws ComponentValidationException {
         validatePersistenceUnitName(session, config);
+        validateReplicaPersistenceUnitNames(session, config);
+        validateShardPersistenceUnitNames(session, config);
         validateRoleMappings(realm, config);
+        validateOption(config, PAGINATION_MODE_PROPERTY, ProviderConfig.PaginationMode.class, "offset", "Pagination mode");
+        validateOption(config, SEARCH_MODE_PROPERTY, UserSearchQuery.SearchMode.class, "trigram", "Search mode");
+        validateOption(config, COUNT_MODE_PROPERTY, ProviderConfig.CountMode.class, "exact", "Count mode");
+        validateOption(config, CHANGE_FEED_PROPERTY, ProviderConfig.ChangeFeedMode.class, "none", "Change feed");
+        validateOption(config, PASSWORD_CACHING_PROPERTY, ProviderConfig.PasswordCaching.class, "user-cache", "Password caching");
+        validateCountRefreshInterval(config);
+        validateNonNegative(config, QUERY_TIMEOUT_PROPERTY, "Query timeout");
+        validateNonNegative(config, MAX_CONCURRENT_QUERIES_PROPERTY, "Max concurrent queries");
     }
 
     @Override
@@ -96,6 +614,45 @@ public class ExternalDBUserStorageProviderFactory implements UserStorageProvider
         }
     }
 
+    protected void validateReplicaPersistenceUnitNames(KeycloakSession session, ComponentModel config) {
+        Set<String> persistenceUnits = session.listProviderIds(JpaConnectionProvider.class);
+        for (String replica : ProviderConfig.getNames(config, REPLICA_PERSISTENCE_UNITS_PROPERTY)) {
+            if (!persistenceUnits.contains(replica)) {
+                throw new ComponentValidationException("Failed to find JpaConnectionProvider for " +
+                        "replica persistence unit: " + replica);
+            }
+        }
+    }
+
+    protected void validateShardPersistenceUnitNames(KeycloakSession session, ComponentModel config) {
+        List<String> shards = ProviderConfig.getNames(config, SHARD_PERSISTENCE_UNITS_PROPERTY);
+        if (shards.isEmpty()) {
+            return;
+        }
+        Set<String> persistenceUnits = session.listProviderIds(JpaConnectionProvider.class);
+        Set<String> distinct = new HashSet<>();
+        distinct.add(config.get(PERSISTENCE_UNIT_PROPERTY));
+        for (String shard : shards) {
+            if (!persistenceUnits.contains(shard)) {
+                throw new ComponentValidationException("Failed to find JpaConnectionProvider for " +
+                        "shard persistence unit: " + shard);
+            }
+            if (!distinct.add(shard)) {
+                throw new ComponentValidationException("Persistence unit " + shard + " is used by more than one shard");
+            }
+        }
+        // these read or write the first shard only
+        if (!ProviderConfig.getNames(config, REPLICA_PERSISTENCE_UNITS_PROPERTY).isEmpty()) {
+            throw new ComponentValidationException("Shards cannot be combined with replicas");
+        }
+        if (!"none".equals(config.get(CHANGE_FEED_PROPERTY, "none"))) {
+            throw new ComponentValidationException("Shards cannot be combined with a change feed");
+        }
+        if (new UserStorageProviderModel(config).isImportEnabled()) {
+            throw new ComponentValidationException("Shards cannot be combined with importing users");
+        }
+    }
+
     protected void validateRoleMappings(RealmModel realm, ComponentModel config) {
         Map<String, Set<String>> roleMappings = ProviderConfigUtil.getConfigMap(config, ROLE_MAPPINGS_PROPERTY);
         Set<String> rolesNotFound = new HashSet<>();
@@ -113,10 +670,421 @@ public class ExternalDBUserStorageProviderFactory implements UserStorageProvider
         }
     }
 
+    protected void validateCountRefreshInterval(ComponentModel config) {
+        validateNonNegative(config, COUNT_REFRESH_INTERVAL_PROPERTY, "Count refresh interval");
+    }
+
+    protected <E extends Enum<E>> void validateOption(ComponentModel config, String property, Class<E> type,
+                                                      String defaultValue, String description) {
+        try {
+            ProviderConfig.getOption(config, property, type, defaultValue);
+        } catch (IllegalArgumentException e) {
+            List<String> options = Arrays.stream(type.getEnumConstants())
+                    .map(option -> option.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .toList();
+            throw new ComponentValidationException(description + " must be one of " + options + ": " + config.get(property));
+        }
+    }
+
+    protected void validateNonNegative(ComponentModel config, String property, String description) {
+        String value = config.get(property);
+        if (value == null) {
+            return;
+        }
+        try {
+            if (Integer.parseInt(value) < 0) {
+                throw new ComponentValidationException(description + " must not be negative");
+            }
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(description + " is not a number: " + value);
+        }
+    }
+
+    /**
+     * Configuration changes made on another cluster node do not reach {@link #onUpdate}, so cached configuration
+     * is also re-parsed whenever its raw values differ from the component's.
+     */
+    protected ProviderConfig getProviderConfig(ComponentModel config) {
+        ProviderConfig providerConfig = providerConfigs.get(config.getId());
+        if (providerConfig == null || !providerConfig.isCurrent(config)) {
+            providerConfig = ProviderConfig.parse(config);
+            providerConfigs.put(config.getId(), providerConfig);
+        }
+        return providerConfig;
+    }
+
+    protected UserBatchLoader getBatchLoader(ComponentModel config) {
+        if (userBatchWindowMicros <= 0) {
+            return null;
+        }
+        return batchLoaders.computeIfAbsent(config.getId(), id -> new UserBatchLoader(userBatchMaxSize, userBatchWindowMicros,
+                userBatchMaxWaitMillis));
+    }
+
+    /**
+     * A router is kept as long as the component's replicas stay the same, so that it keeps their measurements.
+     */
+    protected ReplicaRouter getReplicaRouter(ComponentModel config, ProviderConfig providerConfig) {
+        List<String> replicas = providerConfig.getReplicaPersistenceUnitNames();
+        if (replicas.isEmpty()) {
+            return null;
+        }
+        return replicaRouters.compute(config.getId(), (id, router) -> router != null && router.getPersistenceUnitNames().equals(replicas)
+                ? router
+                : new ReplicaRouter(replicas, replicaEjectMillis));
+    }
+
+    /**
+     * The first shard is the component's own persistence unit. A router is kept as long as the shards stay the same.
+     */
+    protected ShardRouter getShardRouter(KeycloakSession session, ComponentModel config, ProviderConfig providerConfig) {
+        List<String> shards = providerConfig.getShardPersistenceUnitNames();
+        if (shards.isEmpty()) {
+            return null;
+        }
+        List<String> persistenceUnits = new ArrayList<>(shards.size() + 1);
+        persistenceUnits.add(providerConfig.getPersistenceUnitName());
+        persistenceUnits.addAll(shards);
+        return shardRouters.compute(config.getId(), (id, router) -> router != null && router.getPersistenceUnitNames().equals(persistenceUnits)
+                ? router
+                : new ShardRouter(persistenceUnits, persistenceUnits.stream()
+                        .map(unit -> session.getProvider(JpaConnectionProvider.class, unit).getEntityManager().getEntityManagerFactory())
+                        .toList(), shardFanOutExecutor));
+    }
+
+    /**
+     * A guard is only replaced when its limits change, including changes made on another node.
+     */
+    protected ExternalStoreGuard getStoreGuard(ComponentModel config, ProviderConfig providerConfig) {
+        return storeGuards.compute(config.getId(), (id, guard) -> guard != null
+                && guard.getMaxConcurrentCalls() == providerConfig.getMaxConcurrentQueries()
+                && guard.getQueryTimeoutMillis() == providerConfig.getQueryTimeoutMillis()
+                ? guard
+                : new ExternalStoreGuard(config.getName(), providerConfig.getMaxConcurrentQueries(), bulkheadWaitMillis,
+                        circuitBreakerWindowSize, circuitBreakerFailureRate, circuitBreakerSlowCallMillis,
+                        circuitBreakerOpenMillis, providerConfig.getQueryTimeoutMillis(), metrics));
+    }
+
+    protected ExternalUserCache getUserCache(ComponentModel config) {
+        if (userCacheTtlMillis <= 0) {
+            return null;
+        }
+        return userCaches.computeIfAbsent(config.getId(), id -> new ExternalUserCache(
+                userCacheTtlMillis, userCacheNegativeTtlMillis, userCacheMaxEntries, userCacheMaxBytes));
+    }
+
+    protected void startChangeFeed(KeycloakSession session, ComponentModel config, ProviderConfig providerConfig) {
+        if (providerConfig.getChangeFeedMode() == ProviderConfig.ChangeFeedMode.NONE
+                || changeFeeds.containsKey(config.getId())) {
+            return;
+        }
+        changeFeeds.computeIfAbsent(config.getId(), id -> {
+            UserChangeFeed feed = createChangeFeed(session, config, providerConfig);
+            feed.start(changes -> onUserChanges(config, changes));
+            return feed;
+        });
+    }
+
+    protected UserChangeFeed createChangeFeed(KeycloakSession session, ComponentModel config, ProviderConfig providerConfig) {
+        ConnectionProvider connections = getEntityManager(session, providerConfig)
+                .getEntityManagerFactory()
+                .unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .getService(ConnectionProvider.class);
+        return new PostgresUserChangeFeed(connections, changeFeedChannel, 1000, config.getName());
+    }
+
+    protected void closeChangeFeed(String componentId) {
+        UserChangeFeed feed = changeFeeds.remove(componentId);
+        if (feed != null) {
+            feed.close();
+        }
+    }
+
+    /**
+     * Evicts changed users from the provider's caches and from Keycloak's user cache. Created users are added to
+     * the membership index right away instead of waiting for its next refresh.
+     */
+    protected void onUserChanges(ComponentModel config, List<UserChange> changes) {
+        boolean all = changes.stream().anyMatch(UserChange::isAll);
+        ExternalUserCache userCache = userCaches.get(config.getId());
+        MembershipIndex membershipIndex = membershipIndexes.get(config.getId());
+        for (UserChange change : changes) {
+            if (change.isAll()) {
+                continue;
+            }
+            if (userCache != null) {
+                userCache.invalidate(change.id(), change.username(), change.email());
+            }
+            if (membershipIndex != null) {
+                membershipIndex.add(ExternalUserEntity.normalizeLoginIdentifier(change.username()));
+                membershipIndex.add(ExternalUserEntity.normalizeLoginIdentifier(change.email()));
+            }
+        }
+        if (all && userCache != null) {
+            userCache.clear();
+        }
+        ProviderConfig providerConfig = providerConfigs.get(config.getId());
+        SeekPositionCache seekPositions = providerConfig != null ? providerConfig.getSeekPositionCache() : null;
+        if (seekPositions != null) {
+            // an inserted, deleted or renamed user shifts the positions of every page after it
+            seekPositions.clear();
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            UserCache cache = session.getProvider(UserCache.class);
+            RealmModel realm = session.realms().getRealm(config.getParentId());
+            if (cache == null || realm == null) {
+                return;
+            }
+            if (all) {
+                // Keycloak's user cache cannot evict by storage provider, so this drops every cached user of the realm
+                cache.evict(realm);
+                return;
+            }
+            for (UserChange change : changes) {
+                // stands in for the cached user, whose id, username and email keys are evicted
+                InMemoryUserAdapter user = new InMemoryUserAdapter(session, realm, StorageId.keycloakId(config, change.id()));
+                if (change.username() != null) {
+                    user.setUsername(change.username());
+                }
+                if (change.email() != null) {
+                    user.setEmail(change.email());
+                }
+                cache.evict(realm, user);
+            }
+        });
+        logger.tracev("Evicted {0} changed users of component {1}", all ? "all" : changes.size(), config.getName());
+    }
+
+    protected ExternalUserImporter createImporter(KeycloakSessionFactory sessionFactory, String realmId,
+                                                  ComponentModel model) {
+        return new ExternalUserImporter(sessionFactory, realmId, model,
+                this::getEntityManager,
+                (session, config) -> getProviderConfig(config).getRoleMappingIndex(session, config),
+                syncChunkSize,
+                syncWorkers);
+    }
+
+    protected void saveSyncWatermark(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel model,
+                                     Long watermark) {
+        String saved = model.get(SYNC_WATERMARK_PROPERTY);
+        if (watermark == null || (saved != null && Long.parseLong(saved) >= watermark)) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel component = realm.getComponent(model.getId());
+            component.put(SYNC_WATERMARK_PROPERTY, watermark);
+            realm.updateComponent(component);
+        });
+    }
+
+    protected void refreshMembershipIndexes(KeycloakSessionFactory factory) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(factory, session -> session.realms().getRealmsStream()
+                    .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                    .filter(component -> PROVIDER_ID.equals(component.getProviderId()))
+                    .forEach(component -> refreshMembershipIndex(session, component)));
+        } catch (RuntimeException e) {
+            logger.warn("Failed to refresh membership indexes", e);
+        }
+    }
+
+    protected void refreshMembershipIndex(KeycloakSession session, ComponentModel config) {
+        if (!getProviderConfig(config).getShardPersistenceUnitNames().isEmpty()) {
+            // the index would only cover the first shard
+            return;
+        }
+        // always rebuilt from every row: renamed users and rows whose created_at is missing, back-dated or committed
+        // late cannot be picked up incrementally, and a missed user would be refused a login
+        try {
+            EntityManager entityManager = getEntityManager(session, config);
+            long users = ((Number) entityManager.createNamedQuery("getUserCount").getSingleResult()).longValue();
+            // usernames and emails, with headroom for users the change feed adds before the next rebuild
+            MembershipIndex rebuilt = MembershipIndex.create(users * 2 + users / 2,
+                    membershipIndexFalsePositiveRate, membershipIndexMaxBytes, membershipIndexMaxStalenessMillis);
+            long added = addLoginIdentifiers(rebuilt,
+                    entityManager.createNamedQuery("getAllUserLoginIdentifiers", Object[].class));
+            membershipIndexes.put(config.getId(), rebuilt);
+            logger.debugv("Built membership index for component {0} with {1} users", config.getName(), added);
+        } catch (RuntimeException e) {
+            logger.warnv(e, "Failed to refresh membership index for component {0}", config.getName());
+        }
+    }
+
+    /**
+     * Does the work the first logins after a start would otherwise pay for: opens connections to the external
+     * stores, runs each lookup query once so Hibernate compiles it, resolves the components' role mappings, compiles
+     * the password verifier and optionally loads the newest users into the node-local cache. Failures are logged and
+     * never stop the node from starting.
+     */
+    protected void warmUp(KeycloakSessionFactory factory) {
+        long start = System.nanoTime();
+        List<ComponentModel> components;
+        try {
+            components = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> session.realms().getRealmsStream()
+                    .flatMap(realm -> realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName()))
+                    .filter(component -> PROVIDER_ID.equals(component.getProviderId()))
+                    .toList());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to list components to warm up", e);
+            return;
+        }
+        Set<String> warmedPersistenceUnits = new HashSet<>();
+        for (ComponentModel component : components) {
+            warmUp(factory, component, warmedPersistenceUnits);
+        }
+        long verifierStart = System.nanoTime();
+        warmUpPasswordVerifier();
+        logger.infov("Warmed up {0} components on {1} persistence units in {2} ms, {3} ms of which verifying passwords",
+                components.size(), warmedPersistenceUnits.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - verifierStart));
+    }
+
+    protected void warmUp(KeycloakSessionFactory factory, ComponentModel config, Set<String> warmedPersistenceUnits) {
+        long start = System.nanoTime();
+        try {
+            ProviderConfig providerConfig = getProviderConfig(config);
+            KeycloakModelUtils.runJobInTransaction(factory, session -> providerConfig.getRoleMappingIndex(session, config));
+            List<String> persistenceUnits = new ArrayList<>();
+            persistenceUnits.add(providerConfig.getPersistenceUnitName());
+            persistenceUnits.addAll(providerConfig.getReplicaPersistenceUnitNames());
+            persistenceUnits.addAll(providerConfig.getShardPersistenceUnitNames());
+            for (String persistenceUnit : persistenceUnits) {
+                if (warmedPersistenceUnits.add(persistenceUnit)) {
+                    warmUpPersistenceUnit(factory, persistenceUnit, providerConfig.getQueryTimeoutMillis());
+                }
+            }
+            int preloaded = preloadUsers(factory, config, providerConfig);
+            logger.debugv("Warmed up component {0} in {1} ms, preloaded {2} users", config.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), preloaded);
+        } catch (RuntimeException e) {
+            logger.warnv(e, "Failed to warm up component {0}", config.getName());
+        }
+    }
+
+    /**
+     * The lookups bind an id and login identifier no user has, so they read nothing. The connections are opened
+     * all at once, so that the pool has to open that many, and are handed back to it idle.
+     */
+    protected void warmUpPersistenceUnit(KeycloakSessionFactory factory, String persistenceUnit, long queryTimeoutMillis) {
+        String unknown = UUID.randomUUID().toString();
+        ConnectionProvider connections = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            EntityManager entityManager = session.getProvider(JpaConnectionProvider.class, persistenceUnit).getEntityManager();
+            entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+            if (queryTimeoutMillis > 0) {
+                entityManager.setProperty(ExternalDBUserStorageProvider.QUERY_TIMEOUT_HINT, queryTimeoutMillis);
+            }
+            entityManager.createNamedQuery("getUserById", ExternalUserEntity.class)
+                    .setParameter("id", unknown).getResultList();
+            entityManager.createNamedQuery("getUserByUsername", ExternalUserEntity.class)
+                    .setParameter("username", unknown).getResultList();
+            entityManager.createNamedQuery("getUserByEmail", ExternalUserEntity.class)
+                    .setParameter("email", unknown).getResultList();
+            entityManager.createNamedQuery("getUserByLoginIdentifier", ExternalUserEntity.class)
+                    .setParameter("identifier", unknown).getResultList();
+            entityManager.createNamedQuery("getUsersByIds", ExternalUserEntity.class)
+                    .setParameter("ids", List.of(unknown)).getResultList();
+            entityManager.createNamedQuery("getAllUsersWithAnyRole", ExternalUserEntity.class)
+                    .setParameter("roles", List.of(unknown)).setMaxResults(1).getResultList();
+            entityManager.createNamedQuery("getPasswordById", String.class)
+                    .setParameter("id", unknown).getResultList();
+            return entityManager.getEntityManagerFactory()
+                    .unwrap(SessionFactoryImplementor.class)
+                    .getServiceRegistry()
+                    .getService(ConnectionProvider.class);
+        });
+        List<Connection> opened = new ArrayList<>(warmUpConnections);
+        try {
+            for (int i = 0; i < warmUpConnections; i++) {
+                opened.add(connections.getConnection());
+            }
+        } catch (SQLException e) {
+            logger.warnv(e, "Opened {0} of {1} connections of persistence unit {2}", opened.size(), warmUpConnections,
+                    persistenceUnit);
+        } finally {
+            for (Connection connection : opened) {
+                try {
+                    connections.closeConnection(connection);
+                } catch (SQLException e) {
+                    logger.debugv(e, "Failed to release warm-up connection of persistence unit {0}", persistenceUnit);
+                }
+            }
+        }
+    }
+
+    /**
+     * The external store records no logins, so the users most likely to log in soon are taken to be the newest ones.
+     * They are cached oldest first, so that the newest survive if the cache is too small for all of them.
+     */
+    protected int preloadUsers(KeycloakSessionFactory factory, ComponentModel config, ProviderConfig providerConfig) {
+        ExternalUserCache userCache = getUserCache(config);
+        if (userCache == null || warmUpPreloadUsers <= 0) {
+            return 0;
+        }
+        List<ExternalUserEntity> users = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> {
+            ShardRouter shardRouter = getShardRouter(session, config, providerConfig);
+            if (shardRouter == null) {
+                return newestUsers(getEntityManager(session, providerConfig));
+            }
+            return shardRouter.fanOut((shard, entityManager) -> {
+                List<ExternalUserEntity> shardUsers = newestUsers(entityManager);
+                shardUsers.forEach(user -> user.setShardTag(ShardRouter.tag(shard)));
+                return shardUsers;
+            }).stream().flatMap(List::stream).toList();
+        });
+        List<ExternalUserEntity> preloaded = users.stream()
+                .sorted(Comparator.comparing(ExternalUserEntity::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder())))
+                .limit(warmUpPreloadUsers)
+                .toList()
+                .reversed();
+        preloaded.forEach(userCache::put);
+        return preloaded.size();
+    }
+
+    private List<ExternalUserEntity> newestUsers(EntityManager entityManager) {
+        return entityManager.createNamedQuery("getNewestUsers", ExternalUserEntity.class)
+                .setMaxResults(warmUpPreloadUsers)
+                .getResultList();
+    }
+
+    protected void warmUpPasswordVerifier() {
+        try {
+            for (int i = 0; i < warmUpPasswordVerifications; i++) {
+                passwordVerificationEngine.verify("warm-up", WARM_UP_PASSWORD_HASH);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to warm up the password verifier", e);
+        }
+    }
+
+    private long addLoginIdentifiers(MembershipIndex index, TypedQuery<Object[]> query) {
+        long added = 0;
+        try (Stream<Object[]> rows = query.setHint("org.hibernate.fetchSize", 1000).getResultStream()) {
+            for (Object[] row : (Iterable<Object[]>) rows::iterator) {
+                index.add(ExternalUserEntity.normalizeLoginIdentifier((String) row[0]));
+                index.add(ExternalUserEntity.normalizeLoginIdentifier((String) row[1]));
+                added++;
+            }
+        }
+        return added;
+    }
+
     protected EntityManager getEntityManager(KeycloakSession keycloakSession, ComponentModel config) {
-        return keycloakSession
-                .getProvider(JpaConnectionProvider.class, config.get(PERSISTENCE_UNIT_PROPERTY))
+        return getEntityManager(keycloakSession, getProviderConfig(config));
+    }
+
+    /**
+     * External users are never written, so entities are loaded read-only: the persistence context keeps no
+     * snapshot of them and flushes skip dirty checking.
+     */
+    protected EntityManager getEntityManager(KeycloakSession keycloakSession, ProviderConfig providerConfig) {
+        EntityManager entityManager = keycloakSession
+                .getProvider(JpaConnectionProvider.class, providerConfig.getPersistenceUnitName())
                 .getEntityManager();
+        entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+        return entityManager;
     }
 
 }
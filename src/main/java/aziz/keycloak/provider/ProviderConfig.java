@@ -0,0 +1,237 @@
+package aziz.keycloak.provider;
+
+import aziz.keycloak.cache.SeekPositionCache;
+import aziz.keycloak.cache.UserCountCache;
+import aziz.keycloak.mapping.RoleMappingIndex;
+import aziz.keycloak.search.UserSearchQuery.SearchMode;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.CHANGE_FEED_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.COUNT_MODE_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.COUNT_REFRESH_INTERVAL_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.MAX_CONCURRENT_QUERIES_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.PAGINATION_MODE_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.PASSWORD_CACHING_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.PERSISTENCE_UNIT_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.QUERY_TIMEOUT_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.REPLICA_PERSISTENCE_UNITS_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.ROLE_MAPPINGS_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.SEARCH_MODE_PROPERTY;
+import static aziz.keycloak.provider.ExternalDBUserStorageProviderFactory.SHARD_PERSISTENCE_UNITS_PROPERTY;
+
+/**
+ * Parsed configuration of one component. The raw values it was parsed from are kept, so a cached instance can be
+ * checked against the current {@link ComponentModel} with plain string comparisons.
+ */
+public class ProviderConfig {
+
+    public enum PaginationMode {
+        OFFSET, KEYSET
+    }
+
+    public enum CountMode {
+        EXACT, CACHED, ESTIMATED
+    }
+
+    public enum ChangeFeedMode {
+        NONE, POSTGRES
+    }
+
+    public enum PasswordCaching {
+        USER_CACHE, NONE
+    }
+
+    // bounds how long pages may skip or repeat users after inserts, deletes or renames the change feed does not report
+    private static final long SEEK_POSITION_TTL_MILLIS = 60_000L;
+
+    private static final List<String> PROPERTIES = List.of(
+            PERSISTENCE_UNIT_PROPERTY,
+            REPLICA_PERSISTENCE_UNITS_PROPERTY,
+            SHARD_PERSISTENCE_UNITS_PROPERTY,
+            ROLE_MAPPINGS_PROPERTY,
+            PAGINATION_MODE_PROPERTY,
+            SEARCH_MODE_PROPERTY,
+            COUNT_MODE_PROPERTY,
+            COUNT_REFRESH_INTERVAL_PROPERTY,
+            CHANGE_FEED_PROPERTY,
+            QUERY_TIMEOUT_PROPERTY,
+            MAX_CONCURRENT_QUERIES_PROPERTY,
+            PASSWORD_CACHING_PROPERTY);
+
+    // multivalued properties hold several values
+    private final Map<String, List<String>> rawValues;
+
+    private final String persistenceUnitName;
+
+    private final List<String> replicaPersistenceUnitNames;
+
+    private final List<String> shardPersistenceUnitNames;
+
+    private final Map<String, Set<String>> roleMappings;
+
+    private final String realmId;
+
+    private final PaginationMode paginationMode;
+
+    private final SearchMode searchMode;
+
+    private final CountMode countMode;
+
+    private final long countRefreshIntervalMillis;
+
+    private final ChangeFeedMode changeFeedMode;
+
+    private final long queryTimeoutMillis;
+
+    private final int maxConcurrentQueries;
+
+    private final PasswordCaching passwordCaching;
+
+    private volatile RoleMappingIndex roleMappingIndex;
+
+    // shared by all sessions of the component until its configuration changes; null when counting exactly
+    private final UserCountCache userCountCache;
+
+    // positions of pages fetched under this configuration; null with offset pagination
+    private final SeekPositionCache seekPositionCache;
+
+    private ProviderConfig(ComponentModel model) {
+        rawValues = new HashMap<>();
+        for (String property : PROPERTIES) {
+            rawValues.put(property, model.getConfig().get(property));
+        }
+        persistenceUnitName = model.get(PERSISTENCE_UNIT_PROPERTY);
+        replicaPersistenceUnitNames = getNames(model, REPLICA_PERSISTENCE_UNITS_PROPERTY);
+        shardPersistenceUnitNames = getNames(model, SHARD_PERSISTENCE_UNITS_PROPERTY);
+        roleMappings = ProviderConfigUtil.getConfigMap(model, ROLE_MAPPINGS_PROPERTY);
+        realmId = model.getParentId();
+        paginationMode = getOption(model, PAGINATION_MODE_PROPERTY, PaginationMode.class, "offset");
+        searchMode = getOption(model, SEARCH_MODE_PROPERTY, SearchMode.class, "trigram");
+        countMode = getOption(model, COUNT_MODE_PROPERTY, CountMode.class, "exact");
+        countRefreshIntervalMillis = Long.parseLong(model.get(COUNT_REFRESH_INTERVAL_PROPERTY, "60")) * 1000L;
+        changeFeedMode = getOption(model, CHANGE_FEED_PROPERTY, ChangeFeedMode.class, "none");
+        queryTimeoutMillis = Long.parseLong(model.get(QUERY_TIMEOUT_PROPERTY, "5")) * 1000L;
+        maxConcurrentQueries = Integer.parseInt(model.get(MAX_CONCURRENT_QUERIES_PROPERTY, "20"));
+        passwordCaching = getOption(model, PASSWORD_CACHING_PROPERTY, PasswordCaching.class, "user-cache");
+        userCountCache = countMode == CountMode.EXACT ? null : new UserCountCache(countRefreshIntervalMillis);
+        seekPositionCache = paginationMode == PaginationMode.KEYSET
+                ? new SeekPositionCache(SEEK_POSITION_TTL_MILLIS, 1000)
+                : null;
+    }
+
+    public static ProviderConfig parse(ComponentModel model) {
+        return new ProviderConfig(model);
+    }
+
+    /**
+     * @return true if this configuration was parsed from the values currently held by {@code model}
+     */
+    public boolean isCurrent(ComponentModel model) {
+        for (String property : PROPERTIES) {
+            if (!Objects.equals(rawValues.get(property), model.getConfig().get(property))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getPersistenceUnitName() {
+        return persistenceUnitName;
+    }
+
+    public List<String> getReplicaPersistenceUnitNames() {
+        return replicaPersistenceUnitNames;
+    }
+
+    /**
+     * @return the persistence units of the shards after the first one, which is the component's own persistence unit
+     */
+    public List<String> getShardPersistenceUnitNames() {
+        return shardPersistenceUnitNames;
+    }
+
+    public PaginationMode getPaginationMode() {
+        return paginationMode;
+    }
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    public long getCountRefreshIntervalMillis() {
+        return countRefreshIntervalMillis;
+    }
+
+    public ChangeFeedMode getChangeFeedMode() {
+        return changeFeedMode;
+    }
+
+    public long getQueryTimeoutMillis() {
+        return queryTimeoutMillis;
+    }
+
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    public PasswordCaching getPasswordCaching() {
+        return passwordCaching;
+    }
+
+    public UserCountCache getUserCountCache() {
+        return userCountCache;
+    }
+
+    public SeekPositionCache getSeekPositionCache() {
+        return seekPositionCache;
+    }
+
+    public Map<String, Set<String>> getRoleMappings() {
+        return roleMappings;
+    }
+
+    public RoleMappingIndex getRoleMappingIndex(KeycloakSession session, ComponentModel model) {
+        RoleMappingIndex index = roleMappingIndex;
+        if (index == null) {
+            index = RoleMappingIndex.compile(roleMappings, session.realms().getRealm(model.getParentId()));
+            roleMappingIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Drops the compiled role mapping index if the component belongs to the realm and maps to the realm role, so
+     * that the index is compiled against the realm's current roles on next use.
+     */
+    public void discardRoleMappingIndex(String realmId, String realmRoleName) {
+        if (this.realmId != null && this.realmId.equals(realmId)
+                && roleMappings.values().stream().anyMatch(realmRoles -> realmRoles.contains(realmRoleName))) {
+            roleMappingIndex = null;
+        }
+    }
+
+    static List<String> getNames(ComponentModel model, String property) {
+        return model.getConfig().getList(property).stream()
+                .filter(name -> name != null && !name.isBlank())
+                .toList();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value does not name one of the options
+     */
+    static <E extends Enum<E>> E getOption(ComponentModel model, String property, Class<E> type, String defaultValue) {
+        return Enum.valueOf(type, model.get(property, defaultValue).toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -13,12 +13,14 @@ import java.util.stream.Collectors;
 
 public class ProviderConfigUtil {
 
+    private static final TypeReference<List<ProviderConfigUtil.StringPair>> MAP_TYPE_REPRESENTATION =
+            new TypeReference<List<ProviderConfigUtil.StringPair>>() {};
+
     public static Map<String, Set<String>> getConfigMap(ComponentModel config, String configKey) {
         String configMap = config.get(configKey);
         if(configMap == null)
             return Collections.emptyMap();
         try {
-            TypeReference<List<ProviderConfigUtil.StringPair>> MAP_TYPE_REPRESENTATION = new TypeReference<List<ProviderConfigUtil.StringPair>>() {};
             List<ProviderConfigUtil.StringPair> map = JsonSerialization.readValue(configMap, MAP_TYPE_REPRESENTATION);
             return map.stream().collect(
                     Collectors.collectingAndThen(
@@ -0,0 +1,185 @@
+package aziz.keycloak.resilience;
+
+import aziz.keycloak.metrics.ProviderMetrics;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Guards the calls of one component to its external store with a bulkhead and a circuit breaker, and holds the
+ * timeout applied to each of their queries.
+ * <p>
+ * The bulkhead bounds the calls running at once, so a slow store holds at most that many Keycloak workers; further
+ * calls wait briefly for a slot and are then refused. The circuit breaker records whether each of the latest calls
+ * failed or ran longer than the slow call threshold. Once the share of such calls in a full window reaches the
+ * threshold, calls are refused for a while, after which a single probe call decides whether the circuit closes again.
+ */
+public class ExternalStoreGuard {
+    private static final Logger logger = Logger.getLogger(ExternalStoreGuard.class);
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int maxConcurrentCalls;
+
+    private final Semaphore permits;
+
+    private final long permitWaitMillis;
+
+    private final long slowCallNanos;
+
+    private final double failureRateThreshold;
+
+    private final long openMillis;
+
+    private final long queryTimeoutMillis;
+
+    private final ProviderMetrics metrics;
+
+    // outcomes of the latest calls, true for failed or slow ones
+    private final boolean[] window;
+
+    private int windowPosition;
+
+    private int recorded;
+
+    private int failures;
+
+    private volatile State state = State.CLOSED;
+
+    private volatile long openUntil;
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    /**
+     * @param maxConcurrentCalls calls allowed to run at once, 0 for no limit
+     * @param queryTimeoutMillis time each query may run, 0 for no limit
+     */
+    public ExternalStoreGuard(String name, int maxConcurrentCalls, long permitWaitMillis, int windowSize,
+                              double failureRateThreshold, long slowCallMillis, long openMillis,
+                              long queryTimeoutMillis, ProviderMetrics metrics) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+        }
+        this.name = name;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.permits = maxConcurrentCalls > 0 ? new Semaphore(maxConcurrentCalls) : null;
+        this.permitWaitMillis = permitWaitMillis;
+        this.window = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openMillis = openMillis;
+        this.queryTimeoutMillis = queryTimeoutMillis;
+        this.metrics = metrics;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public long getQueryTimeoutMillis() {
+        return queryTimeoutMillis;
+    }
+
+    /**
+     * @throws ExternalStoreUnavailableException if the call was refused without running it
+     */
+    public <T> T call(Supplier<T> call) {
+        boolean probe = admit();
+        try {
+            acquire();
+        } catch (ExternalStoreUnavailableException e) {
+            if (probe) {
+                probing.set(false);
+            }
+            throw e;
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+            record(failed || System.nanoTime() - start > slowCallNanos, probe);
+        }
+    }
+
+    // returns whether the call is the probe of a half-open circuit
+    private boolean admit() {
+        if (state == State.CLOSED) {
+            return false;
+        }
+        if (System.currentTimeMillis() >= openUntil && probing.compareAndSet(false, true)) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        metrics.circuitOpenRejection();
+        throw new ExternalStoreUnavailableException("External user store of " + name + " is unavailable");
+    }
+
+    private void acquire() {
+        if (permits == null) {
+            return;
+        }
+        try {
+            if (permits.tryAcquire(permitWaitMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        metrics.bulkheadRejection();
+        throw new ExternalStoreUnavailableException("Too many concurrent calls to the external user store of " + name);
+    }
+
+    private synchronized void record(boolean failed, boolean probe) {
+        if (probe) {
+            if (failed) {
+                open();
+            } else {
+                logger.infov("Circuit of external user store {0} closed", name);
+                state = State.CLOSED;
+                windowPosition = 0;
+                recorded = 0;
+                failures = 0;
+            }
+            probing.set(false);
+            return;
+        }
+        if (state != State.CLOSED) {
+            // calls admitted before the circuit opened
+            return;
+        }
+        if (recorded == window.length) {
+            if (window[windowPosition]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[windowPosition] = failed;
+        if (failed) {
+            failures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+        if (recorded == window.length && failures >= failureRateThreshold * window.length) {
+            open();
+        }
+    }
+
+    private void open() {
+        logger.warnv("Circuit of external user store {0} opened for {1} ms", name, openMillis);
+        openUntil = System.currentTimeMillis() + openMillis;
+        state = State.OPEN;
+    }
+}
@@ -0,0 +1,13 @@
+package aziz.keycloak.resilience;
+
+import org.keycloak.models.ModelException;
+
+/**
+ * Thrown instead of querying the external store while its circuit is open or all calls allowed to it are running.
+ */
+public class ExternalStoreUnavailableException extends ModelException {
+
+    public ExternalStoreUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,30 @@
+package aziz.keycloak.routing;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.SynchronizationType;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.resource.transaction.spi.TransactionCoordinatorBuilder;
+
+/**
+ * Creates the entity managers replicas and shards are read through. They are read-only and, for JTA persistence
+ * units, unsynchronized, so that a failing replica or shard does not mark the request's transaction for rollback.
+ */
+public final class ReadEntityManagers {
+
+    private ReadEntityManagers() {
+    }
+
+    public static EntityManager create(EntityManagerFactory factory) {
+        TransactionCoordinatorBuilder transactions = factory.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry()
+                .getService(TransactionCoordinatorBuilder.class);
+        // resource-local units cannot be given a synchronization type
+        EntityManager entityManager = transactions != null && transactions.isJta()
+                ? factory.createEntityManager(SynchronizationType.UNSYNCHRONIZED)
+                : factory.createEntityManager();
+        entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+        return entityManager;
+    }
+}
@@ -0,0 +1,97 @@
+package aziz.keycloak.routing;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the read replica, i.e. persistence unit, a read of one component goes to. Each replica is scored by the
+ * reads it currently serves and its recent latency, and the lowest score wins. A replica that fails a read is
+ * ejected for a while, then gets traffic again. Every replica returned by {@link #choose} must be released once
+ * the read is over, however it ended.
+ */
+public class ReplicaRouter {
+
+    // weight of the latest read in the latency average
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    public static final class Replica {
+        private final String persistenceUnitName;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private volatile double latencyNanos;
+
+        private volatile long ejectedUntil;
+
+        private Replica(String persistenceUnitName) {
+            this.persistenceUnitName = persistenceUnitName;
+        }
+
+        public String getPersistenceUnitName() {
+            return persistenceUnitName;
+        }
+
+        private double score() {
+            // unmeasured replicas are tried first, so that every replica gets measured
+            return (inFlight.get() + 1) * latencyNanos;
+        }
+    }
+
+    private final List<Replica> replicas;
+
+    private final long ejectMillis;
+
+    public ReplicaRouter(List<String> persistenceUnitNames, long ejectMillis) {
+        this.replicas = persistenceUnitNames.stream().map(Replica::new).toList();
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * @param excluded replicas that already failed this read, or null
+     * @return the healthy replica with the lowest score, or null if there is none
+     */
+    public Replica choose(Collection<Replica> excluded) {
+        long now = System.currentTimeMillis();
+        Replica best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Replica replica : replicas) {
+            if (replica.ejectedUntil > now || (excluded != null && excluded.contains(replica))) {
+                continue;
+            }
+            double score = replica.score();
+            if (score < bestScore) {
+                best = replica;
+                bestScore = score;
+            }
+        }
+        if (best != null) {
+            best.inFlight.incrementAndGet();
+        }
+        return best;
+    }
+
+    public void release(Replica replica) {
+        replica.inFlight.decrementAndGet();
+    }
+
+    public void succeeded(Replica replica, long latencyNanos) {
+        double average = replica.latencyNanos;
+        replica.latencyNanos = average == 0 ? latencyNanos : average + LATENCY_SMOOTHING * (latencyNanos - average);
+    }
+
+    /**
+     * Ejects the replica; only for failures that say it is down or slow, not for errors in the read itself.
+     */
+    public void failed(Replica replica) {
+        replica.ejectedUntil = System.currentTimeMillis() + ejectMillis;
+    }
+
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    public List<String> getPersistenceUnitNames() {
+        return replicas.stream().map(Replica::getPersistenceUnitName).toList();
+    }
+}
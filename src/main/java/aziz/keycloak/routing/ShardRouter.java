@@ -0,0 +1,143 @@
+package aziz.keycloak.routing;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.keycloak.models.ModelException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+/**
+ * Locates users of an external store split across several persistence units. A user lives on the shard selected by
+ * the hash of its lowercase username. Ids of users on any shard but the first carry the shard as a prefix, so that
+ * ids issued before a store was sharded stay valid for the users remaining on the first shard.
+ */
+public class ShardRouter {
+
+    private static final String TAG_PREFIX = "s";
+
+    private static final char TAG_SEPARATOR = ':';
+
+    private final List<String> persistenceUnitNames;
+
+    private final List<EntityManagerFactory> entityManagerFactories;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param persistenceUnitNames   the shards' persistence units, the component's own persistence unit first
+     * @param entityManagerFactories the factories of these persistence units, in the same order
+     * @param executor               runs the per-shard queries of a fan-out
+     */
+    public ShardRouter(List<String> persistenceUnitNames, List<EntityManagerFactory> entityManagerFactories,
+                       ExecutorService executor) {
+        this.persistenceUnitNames = List.copyOf(persistenceUnitNames);
+        this.entityManagerFactories = List.copyOf(entityManagerFactories);
+        this.executor = executor;
+    }
+
+    public int size() {
+        return entityManagerFactories.size();
+    }
+
+    public List<String> getPersistenceUnitNames() {
+        return persistenceUnitNames;
+    }
+
+    public EntityManagerFactory getEntityManagerFactory(int shard) {
+        return entityManagerFactories.get(shard);
+    }
+
+    /**
+     * String.hashCode is specified by the language, so every node and every release places a username on the same
+     * shard. Adding a shard moves most users, so the shard list of a component must not change once users are placed.
+     */
+    public int shardOfUsername(String username) {
+        return shardOfUsername(username, size());
+    }
+
+    public static int shardOfUsername(String username, int shards) {
+        return Math.floorMod(ExternalUserEntity.normalizeLoginIdentifier(username).hashCode(), shards);
+    }
+
+    /**
+     * @return the prefix of ids of users on the given shard, null for the first shard
+     */
+    public static String tag(int shard) {
+        return shard == 0 ? null : TAG_PREFIX + shard + TAG_SEPARATOR;
+    }
+
+    public static int shardOfId(String externalId) {
+        int separator = tagEnd(externalId);
+        return separator < 0 ? 0 : Integer.parseInt(externalId, TAG_PREFIX.length(), separator, 10);
+    }
+
+    /**
+     * @return the id as stored on its shard
+     */
+    public static String untag(String externalId) {
+        int separator = tagEnd(externalId);
+        return separator < 0 ? externalId : externalId.substring(separator + 1);
+    }
+
+    private static int tagEnd(String externalId) {
+        if (!externalId.startsWith(TAG_PREFIX)) {
+            return -1;
+        }
+        int separator = externalId.indexOf(TAG_SEPARATOR);
+        if (separator <= TAG_PREFIX.length()) {
+            return -1;
+        }
+        for (int i = TAG_PREFIX.length(); i < separator; i++) {
+            if (!Character.isDigit(externalId.charAt(i))) {
+                return -1;
+            }
+        }
+        return separator;
+    }
+
+    /**
+     * Runs a read on every shard in parallel, each with its own read-only entity manager, and waits for all of them.
+     * Entities returned by the reads are detached.
+     *
+     * @param query the read, given the shard it runs on
+     * @return the results of the shards, in shard order
+     */
+    public <T> List<T> fanOut(BiFunction<Integer, EntityManager, T> query) {
+        List<Future<T>> pending = new ArrayList<>(size());
+        for (int shard = 0; shard < size(); shard++) {
+            int current = shard;
+            EntityManagerFactory factory = entityManagerFactories.get(shard);
+            pending.add(executor.submit(() -> {
+                EntityManager entityManager = ReadEntityManagers.create(factory);
+                try {
+                    return query.apply(current, entityManager);
+                } finally {
+                    entityManager.close();
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>(size());
+        try {
+            for (Future<T> result : pending) {
+                results.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            pending.forEach(result -> result.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while reading external user shards", e);
+        } catch (ExecutionException e) {
+            pending.forEach(result -> result.cancel(true));
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new ModelException("Failed to read external user shards", e.getCause());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,135 @@
+package aziz.keycloak.search;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates the parameters Keycloak passes to {@code searchForUserStream} into a query on lowercased columns,
+ * so that it can be served by the expression indexes created in the external store's init script.
+ * <ul>
+ *     <li>{@link UserModel#SEARCH} matches username, email, first or last name. A quoted term matches exactly and
+ *     {@code *} is a wildcard; other terms match according to the {@link SearchMode}.</li>
+ *     <li>{@link UserModel#USERNAME}, {@link UserModel#EMAIL}, {@link UserModel#FIRST_NAME} and
+ *     {@link UserModel#LAST_NAME} match their column, exactly if {@link UserModel#EXACT} is {@code true}.</li>
+ * </ul>
+ */
+public class UserSearchQuery {
+
+    public enum SearchMode {
+        // term% : served by the text_pattern_ops indexes
+        PREFIX,
+        // %term% : served by the pg_trgm indexes
+        TRIGRAM
+    }
+
+    private static final List<String> SEARCH_COLUMNS = List.of("u.username", "u.email", "u.firstName", "u.lastName");
+
+    private static final Map<String, String> FIELD_COLUMNS = Map.of(
+            UserModel.USERNAME, "u.username",
+            UserModel.EMAIL, "u.email",
+            UserModel.FIRST_NAME, "u.firstName",
+            UserModel.LAST_NAME, "u.lastName");
+
+    private final String conditions;
+
+    private final Map<String, Object> parameters;
+
+    private UserSearchQuery(String conditions, Map<String, Object> parameters) {
+        this.conditions = conditions;
+        this.parameters = parameters;
+    }
+
+    public static UserSearchQuery from(Map<String, String> params, SearchMode mode) {
+        List<String> conditions = new ArrayList<>();
+        Map<String, Object> parameters = new LinkedHashMap<>();
+
+        String search = params.get(UserModel.SEARCH);
+        if (search != null && !search.isBlank() && !search.trim().equals("*")) {
+            String term = search.trim();
+            boolean quoted = term.length() > 1 && term.startsWith("\"") && term.endsWith("\"");
+            if (quoted) {
+                term = term.substring(1, term.length() - 1);
+            }
+            conditions.add(match(SEARCH_COLUMNS, term, quoted, mode, parameters));
+        }
+
+        boolean exact = Boolean.parseBoolean(params.get(UserModel.EXACT));
+        // iterate in a fixed order so equal searches produce equal signatures
+        for (String field : List.of(UserModel.USERNAME, UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME)) {
+            String value = params.get(field);
+            if (value != null) {
+                conditions.add(match(List.of(FIELD_COLUMNS.get(field)), value.trim(), exact, mode, parameters));
+            }
+        }
+        return new UserSearchQuery(String.join(" and ", conditions), parameters);
+    }
+
+    /**
+     * @return a stable description of this search, identifying it across requests
+     */
+    public String getSignature() {
+        return conditions + parameters.values();
+    }
+
+    /**
+     * @param afterUsername when not null, only users whose username sorts after it are returned
+     */
+    public TypedQuery<ExternalUserEntity> create(EntityManager entityManager, String afterUsername) {
+        StringBuilder jpql = new StringBuilder("select u from ExternalUserEntity u join fetch u.role");
+        String where = conditions;
+        if (afterUsername != null) {
+            where = where.isEmpty() ? "u.username > :after" : where + " and u.username > :after";
+        }
+        if (!where.isEmpty()) {
+            jpql.append(" where ").append(where);
+        }
+        jpql.append(" order by u.username");
+
+        TypedQuery<ExternalUserEntity> query = entityManager.createQuery(jpql.toString(), ExternalUserEntity.class);
+        parameters.forEach(query::setParameter);
+        if (afterUsername != null) {
+            query.setParameter("after", afterUsername);
+        }
+        return query;
+    }
+
+    private static String match(List<String> columns, String term, boolean exact, SearchMode mode,
+                                Map<String, Object> parameters) {
+        String parameter = "p" + parameters.size();
+        String lower = ExternalUserEntity.normalizeLoginIdentifier(term);
+        String predicate;
+        if (exact) {
+            parameters.put(parameter, lower);
+            predicate = " = :" + parameter;
+        } else {
+            parameters.put(parameter, toPattern(lower, mode));
+            predicate = " like :" + parameter + " escape '\\'";
+        }
+        List<String> alternatives = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            alternatives.add("lower(" + column + ")" + predicate);
+        }
+        return "(" + String.join(" or ", alternatives) + ")";
+    }
+
+    private static String toPattern(String term, SearchMode mode) {
+        String escaped = term
+                .replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+        if (escaped.contains("*")) {
+            return escaped.replace('*', '%');
+        }
+        return switch (mode) {
+            case PREFIX -> escaped + "%";
+            case TRIGRAM -> "%" + escaped + "%";
+        };
+    }
+}
@@ -0,0 +1,260 @@
+package aziz.keycloak.sync;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.mapping.RealmRoleResolver;
+import aziz.keycloak.mapping.RoleMappingIndex;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Imports the users of one component into Keycloak's local storage.
+ * <p>
+ * Users are read in chunks ordered by username, each chunk in its own short transaction, and every chunk is
+ * imported by one of the workers in a transaction of its own. At most two chunks per worker are held in memory,
+ * so the reader waits whenever the workers fall behind.
+ */
+public class ExternalUserImporter {
+    private static final Logger logger = Logger.getLogger(ExternalUserImporter.class);
+
+    /**
+     * Local attribute holding the id of the external user an imported user was created from.
+     */
+    public static final String EXTERNAL_ID_ATTRIBUTE = "EXTERNAL_ID";
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final String realmId;
+
+    private final ComponentModel model;
+
+    private final BiFunction<KeycloakSession, ComponentModel, EntityManager> entityManagers;
+
+    private final BiFunction<KeycloakSession, ComponentModel, RoleMappingIndex> roleMappingIndexes;
+
+    private final int chunkSize;
+
+    private final int workers;
+
+    // highest created_at of the users in committed chunks, or null if none had one
+    private Long importedWatermark;
+
+    // lowest created_at of the users in failed chunks, which a changed sync has to read again
+    private Long failedWatermark;
+
+    public ExternalUserImporter(KeycloakSessionFactory sessionFactory,
+                                String realmId,
+                                ComponentModel model,
+                                BiFunction<KeycloakSession, ComponentModel, EntityManager> entityManagers,
+                                BiFunction<KeycloakSession, ComponentModel, RoleMappingIndex> roleMappingIndexes,
+                                int chunkSize,
+                                int workers) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.entityManagers = entityManagers;
+        this.roleMappingIndexes = roleMappingIndexes;
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+    }
+
+    /**
+     * @param createdSince only users created at or after this time are imported, or all users if null
+     */
+    public SynchronizationResult importUsers(Long createdSince) {
+        SynchronizationResult result = new SynchronizationResult();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new ImporterThreadFactory());
+        CompletionService<SynchronizationResult> completion = new ExecutorCompletionService<>(executor);
+        Semaphore chunksInMemory = new Semaphore(workers * 2);
+        int submitted = 0;
+        int completed = 0;
+        try {
+            String after = "";
+            while (true) {
+                chunksInMemory.acquire();
+                List<ExternalUserEntity> chunk = readChunk(after, createdSince);
+                if (chunk.isEmpty()) {
+                    chunksInMemory.release();
+                    break;
+                }
+                after = chunk.getLast().getUsername();
+                completion.submit(() -> {
+                    try {
+                        return importChunk(chunk);
+                    } finally {
+                        chunksInMemory.release();
+                    }
+                });
+                submitted++;
+                for (Future<SynchronizationResult> done = completion.poll(); done != null; done = completion.poll()) {
+                    result.add(done.get());
+                    completed++;
+                }
+                if (chunk.size() < chunkSize) {
+                    break;
+                }
+            }
+            while (completed < submitted) {
+                result.add(completion.take().get());
+                completed++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while importing users of component " + model.getName(), e);
+        } catch (ExecutionException e) {
+            throw new ModelException("Failed to import users of component " + model.getName(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * @return the created_at from which a changed sync has to read again, never past a user of a failed chunk, or
+     * null if no imported user had one
+     */
+    public synchronized Long getWatermark() {
+        if (importedWatermark == null || failedWatermark == null) {
+            return importedWatermark;
+        }
+        return Math.min(importedWatermark, failedWatermark);
+    }
+
+    private synchronized void recordChunk(List<ExternalUserEntity> chunk, boolean committed) {
+        for (ExternalUserEntity entity : chunk) {
+            Long createdAt = entity.getCreatedAt();
+            if (createdAt == null) {
+                continue;
+            }
+            if (committed && (importedWatermark == null || createdAt > importedWatermark)) {
+                importedWatermark = createdAt;
+            } else if (!committed && (failedWatermark == null || createdAt < failedWatermark)) {
+                failedWatermark = createdAt;
+            }
+        }
+    }
+
+    private List<ExternalUserEntity> readChunk(String after, Long createdSince) {
+        List<ExternalUserEntity> chunk = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            EntityManager entityManager = entityManagers.apply(session, model);
+            TypedQuery<ExternalUserEntity> query = createdSince == null
+                    ? entityManager.createNamedQuery("getUsersAfter", ExternalUserEntity.class)
+                    : entityManager.createNamedQuery("getUsersCreatedSinceAfter", ExternalUserEntity.class)
+                            .setParameter("since", createdSince);
+            // detached copies, the entity manager is closed with the transaction
+            return query
+                    .setParameter("after", after)
+                    .setMaxResults(chunkSize)
+                    .getResultStream()
+                    .map(ExternalUserEntity::snapshot)
+                    .toList();
+        });
+        return chunk;
+    }
+
+    private SynchronizationResult importChunk(List<ExternalUserEntity> chunk) {
+        SynchronizationResult imported;
+        try {
+            imported = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                SynchronizationResult result = new SynchronizationResult();
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+                RoleMappingIndex roleMappingIndex = roleMappingIndexes.apply(session, model);
+                RealmRoleResolver realmRoleResolver = new RealmRoleResolver(roleMappingIndex);
+                for (ExternalUserEntity entity : chunk) {
+                    importUser(realm, localStorage, realmRoleResolver, entity, result);
+                }
+                return result;
+            });
+        } catch (RuntimeException e) {
+            logger.warnv(e, "Failed to import {0} users of component {1} starting at {2}",
+                    chunk.size(), model.getName(), chunk.getFirst().getUsername());
+            recordChunk(chunk, false);
+            SynchronizationResult failed = new SynchronizationResult();
+            failed.setFailed(chunk.size());
+            return failed;
+        }
+        recordChunk(chunk, true);
+        return imported;
+    }
+
+    private void importUser(RealmModel realm, UserProvider localStorage, RealmRoleResolver realmRoleResolver,
+                            ExternalUserEntity entity, SynchronizationResult result) {
+        UserModel user = localStorage.getUserByUsername(realm, entity.getUsername());
+        if (user == null) {
+            user = localStorage.addUser(realm, entity.getUsername());
+            user.setFederationLink(model.getId());
+            result.increaseAdded();
+        } else if (!model.getId().equals(user.getFederationLink())) {
+            logger.warnv("Local user {0} is not linked to component {1} and was not updated",
+                    user.getUsername(), model.getName());
+            result.increaseFailed();
+            return;
+        } else {
+            result.increaseUpdated();
+        }
+        user.setSingleAttribute(EXTERNAL_ID_ATTRIBUTE, entity.getId());
+        user.setEmail(entity.getEmail());
+        user.setFirstName(entity.getFirstName());
+        user.setLastName(entity.getLastName());
+        user.setEnabled(true);
+        user.setCreatedTimestamp(entity.getCreatedAt());
+
+        // mapped realm roles follow the external role, other role mappings are left alone
+        Set<RoleModel> mapped = realmRoleResolver.getRealmRoles(realm, entity.getRole().getName());
+        Set<RoleModel> current = user.getRoleMappingsStream().collect(Collectors.toSet());
+        for (String realmRoleName : realmRoleResolver.getRoleMappingIndex().getMappedRealmRoles()) {
+            RoleModel role = realm.getRole(realmRoleName);
+            if (role != null && current.contains(role) && !mapped.contains(role)) {
+                user.deleteRoleMapping(role);
+            }
+        }
+        for (RoleModel role : mapped) {
+            if (!current.contains(role)) {
+                user.grantRole(role);
+            }
+        }
+    }
+
+    private static class ImporterThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "external-user-importer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package aziz.keycloak.adapter;
+
+import aziz.keycloak.testing.ExternalUserStoreFixture;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ExternalUserAdapterTest {
+
+    private static ExternalUserStoreFixture fixture;
+
+    @BeforeAll
+    static void createStore() {
+        fixture = new ExternalUserStoreFixture(10);
+    }
+
+    @AfterAll
+    static void closeStore() {
+        fixture.close();
+    }
+
+    @Test
+    void getAttributesReturnsAMapCallersMayChange() {
+        fixture.withProvider(provider -> {
+            UserModel user = provider.getUserByUsername(fixture.realm(), ExternalUserStoreFixture.username(1));
+            Map<String, List<String>> attributes = user.getAttributes();
+            assertEquals(List.of(ExternalUserStoreFixture.email(1)), attributes.get(UserModel.EMAIL));
+
+            attributes.put("department", List.of("sales"));
+            attributes.remove(UserModel.EMAIL);
+
+            Map<String, List<String>> again = user.getAttributes();
+            assertNotSame(attributes, again);
+            assertEquals(List.of(ExternalUserStoreFixture.email(1)), again.get(UserModel.EMAIL));
+            assertNull(again.get("department"));
+            return null;
+        });
+    }
+}
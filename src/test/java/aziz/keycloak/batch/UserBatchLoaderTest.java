@@ -0,0 +1,80 @@
+package aziz.keycloak.batch;
+
+import aziz.keycloak.domain.ExternalUserEntity;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ModelException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserBatchLoaderTest {
+
+    private static List<ExternalUserEntity> users(Collection<String> ids) {
+        return ids.stream()
+                .filter(id -> !id.startsWith("missing"))
+                .map(id -> new ExternalUserEntity(id, id + "@myorg.com", id, null, "First", "Last", 0L))
+                .toList();
+    }
+
+    @Test
+    void loadsAFullBatchWithOneQuery() throws Exception {
+        int batchSize = 8;
+        // a window far longer than the test, so only a full batch ends it
+        UserBatchLoader loader = new UserBatchLoader(batchSize, TimeUnit.SECONDS.toMicros(30), 60_000L);
+        List<Collection<String>> queries = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(batchSize);
+        try {
+            List<Future<ExternalUserEntity>> lookups = new ArrayList<>();
+            for (int i = 0; i < batchSize; i++) {
+                String id = i == 0 ? "missing" : "user_" + i;
+                lookups.add(executor.submit(() -> loader.load(id, ids -> {
+                    queries.add(List.copyOf(ids));
+                    return users(ids);
+                })));
+            }
+            assertNull(lookups.getFirst().get(10, TimeUnit.SECONDS));
+            for (int i = 1; i < batchSize; i++) {
+                assertEquals("user_" + i, lookups.get(i).get(10, TimeUnit.SECONDS).getId());
+            }
+            assertEquals(1, queries.size());
+            assertEquals(batchSize, queries.getFirst().size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failsLookupsWithTheQuerysException() {
+        UserBatchLoader loader = new UserBatchLoader(10, 100, 1000L);
+        ModelException failure = new ModelException("unreachable");
+        ModelException thrown = assertThrows(ModelException.class, () -> loader.load("user_1", ids -> {
+            throw failure;
+        }));
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    void waitsForWindowsShorterThanOneMillisecond() {
+        int lookups = 1000;
+        UserBatchLoader loader = new UserBatchLoader(10, 50, 1000L);
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            loader.load("user_" + i, UserBatchLoaderTest::users);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // a window rounded up to a whole millisecond would take at least a second
+        assertTrue(elapsedMillis < lookups, "lookups took " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,121 @@
+package aziz.keycloak.credential;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.params.provider.Arguments.arguments;
+
+class BCryptPasswordVerifierTest {
+
+    private static final String LONG_PASSWORD_72 = "0123456789".repeat(7) + "ab";
+
+    private final BCryptPasswordVerifier verifier = new BCryptPasswordVerifier();
+
+    // the test vectors of jBCrypt, which reproduce OpenBSD's bcrypt
+    static Stream<Arguments> jbcryptVectors() {
+        return Stream.of(
+                arguments("", "$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s."),
+                arguments("", "$2a$08$HqWuK6/Ng6sg9gQzbLrgb.Tl.ZHfXLhvt/SgVyWhQqgqcZ7ZuUtye"),
+                arguments("", "$2a$10$k1wbIrmNyFAPwPVPSVa/zecw2BCEnBwVS2GbrmgzxFUOqW9dk4TCW"),
+                arguments("a", "$2a$06$m0CrhHm10qJ3lXRY.5zDGO3rS2KdeeWLuGmsfGlMfOxih58VYVfxe"),
+                arguments("a", "$2a$08$cfcvVd2aQ8CMvoMpP2EBfeodLEkkFJ9umNEfPD18.hUF62qqlC/V."),
+                arguments("a", "$2a$10$k87L/MF28Q673VKh8/cPi.SUl7MU/rWuSiIDDFayrKk/1tBsSQu4u"),
+                arguments("abc", "$2a$06$If6bvum7DFjUnE9p2uDeDu0YHzrHM6tf.iqN8.yx.jNN1ILEf7h0i"),
+                arguments("abc", "$2a$08$Ro0CUfOqk6cXEKf3dyaM7OhSCvnwM9s4wIX9JeLapehKK5YdLxKcm"),
+                arguments("abc", "$2a$10$WvvTPHKwdBJ3uk0Z37EMR.hLA2W6N9AEBhEgrAOljy2Ae5MtaSIUi"),
+                arguments("abcdefghijklmnopqrstuvwxyz", "$2a$06$.rCVZVOThsIa97pEDOxvGuRRgzG64bvtJ0938xuqzv18d3ZpQhstC"),
+                arguments("abcdefghijklmnopqrstuvwxyz", "$2a$08$aTsUwsyowQuzRrDqFflhgekJ8d9/7Z3GV3UcgvzQW3J5zMyrTvlz."),
+                arguments("abcdefghijklmnopqrstuvwxyz", "$2a$10$fVH8e28OQRj9tqiDXs1e1uxpsjN0c7II7YPKXua2NAKYvM6iQk7dq"),
+                arguments("~!@#$%^&*()      ~!@#$%^&*()PNBFRD", "$2a$06$fPIsBO8qRqkjj273rfaOI.HtSV9jLDpTbZn782DC6/t7qT67P6FfO"),
+                arguments("~!@#$%^&*()      ~!@#$%^&*()PNBFRD", "$2a$08$Eq2r4G/76Wv39MzSX262huzPz612MZiYHVUJe/OcOql2jo4.9UxTW"),
+                arguments("~!@#$%^&*()      ~!@#$%^&*()PNBFRD", "$2a$10$LgfYWkbzEvQ4JakH7rOvHe0y8pHKF9OaFgwUZ2q7W2FFZmZzJYlfS"));
+    }
+
+    // pgcrypto's crypt-blowfish regression test, i.e. what crypt(..., gen_salt('bf')) stores in the external store
+    static Stream<Arguments> pgcryptoVectors() {
+        return Stream.of(
+                arguments("", "$2a$06$RQiOJ.3ELirrXwxIZY8q0OlGbBEpDmx7IRZlNYvGJ1SHXwNi2cEKK"),
+                arguments("foox", "$2a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C"));
+    }
+
+    // produced by libxcrypt's crypt(3), which implements the $2a$, $2b$ and $2y$ revisions
+    static Stream<Arguments> revisionAndEncodingVectors() {
+        return Stream.of(
+                arguments("foox", "$2b$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C"),
+                arguments("foox", "$2y$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C"),
+                arguments("U*U", "$2b$06$RQiOJ.3ELirrXwxIZY8q0O88FwCvZQkWxkVNMAdBqSQDVQA4dbZEu"),
+                arguments(LONG_PASSWORD_72, "$2a$06$RQiOJ.3ELirrXwxIZY8q0OmG2UoPAkLez0tyPrkt9BT.MZrHqM/mK"),
+                arguments("0123456789".repeat(10), "$2b$06$RQiOJ.3ELirrXwxIZY8q0OwfRL6TSBhDrcstlRTLhFbKWhTU9vBRC"),
+                arguments("pässwörd", "$2a$06$RQiOJ.3ELirrXwxIZY8q0OXYs9C/lF8E1sR1Ptiu.rZhbTYDZ1p4m"),
+                arguments("密码", "$2b$06$RQiOJ.3ELirrXwxIZY8q0OQmvvVCCvj6cYsMVXgv5mmQREMA8J3Ci"),
+                arguments("🔑key", "$2b$06$RQiOJ.3ELirrXwxIZY8q0OTUQy3hSB8A1XI055f8pR/geWMJbmara"));
+    }
+
+    @ParameterizedTest
+    @MethodSource({"jbcryptVectors", "pgcryptoVectors", "revisionAndEncodingVectors"})
+    void acceptsMatchingPassword(String password, String hash) {
+        assertTrue(verifier.verify(password, hash));
+    }
+
+    @ParameterizedTest
+    @MethodSource({"jbcryptVectors", "pgcryptoVectors", "revisionAndEncodingVectors"})
+    void rejectsOtherPassword(String password, String hash) {
+        assertFalse(verifier.verify("x" + password, hash));
+    }
+
+    @Test
+    void ignoresBytesAfterTheSeventySecond() {
+        String hash = "$2a$06$RQiOJ.3ELirrXwxIZY8q0OmG2UoPAkLez0tyPrkt9BT.MZrHqM/mK";
+        assertTrue(verifier.verify(LONG_PASSWORD_72 + "c", hash));
+        assertFalse(verifier.verify(LONG_PASSWORD_72.substring(1), hash));
+    }
+
+    @Test
+    void rejectsNullPassword() {
+        assertFalse(verifier.verify(null, "$2a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "foox",
+            "$2a$06$",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0O",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/CC",
+            "$2c$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2x$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$1a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$03$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$32$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$0x$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0!R3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0éR3CVJrAfda1z26CCHPnB6mmVZD8p0/C",
+            "$2a$06$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/Ā",
+    })
+    void rejectsMalformedHashWithoutThrowing(String hash) {
+        assertFalse(verifier.verify("foox", hash));
+    }
+
+    // valid hashes, but verifying them would keep a verifier thread busy long after the login timed out
+    @ParameterizedTest
+    @ValueSource(strings = {"21", "25", "31"})
+    void rejectsCostsAboveTwentyWithoutHashing(String cost) {
+        String hash = "$2a$" + cost + "$RQiOJ.3ELirrXwxIZY8q0OR3CVJrAfda1z26CCHPnB6mmVZD8p0/C";
+        assertFalse(assertTimeoutPreemptively(Duration.ofSeconds(5), () -> verifier.verify("foox", hash)));
+    }
+
+    @Test
+    void rejectsNullHash() {
+        assertFalse(verifier.verify("foox", null));
+    }
+}
@@ -0,0 +1,71 @@
+package aziz.keycloak.credential;
+
+import aziz.keycloak.credential.PasswordVerificationThrottle.Verdict;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PasswordVerificationThrottleTest {
+
+    private static final long ONE_HOUR = 3_600_000L;
+
+    @Test
+    void refusesAUserOnceItReachesTheThreshold() {
+        PasswordVerificationThrottle throttle = new PasswordVerificationThrottle(1024, 3, 0, ONE_HOUR);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Verdict.ALLOWED, throttle.check("alice", "10.0.0.1"));
+            throttle.failed("alice", "10.0.0.1");
+        }
+        assertEquals(Verdict.USER_THROTTLED, throttle.check("alice", "10.0.0.2"));
+        assertEquals(Verdict.ALLOWED, throttle.check("bob", "10.0.0.1"));
+    }
+
+    @Test
+    void refusesASourceOnceItReachesTheThreshold() {
+        PasswordVerificationThrottle throttle = new PasswordVerificationThrottle(1024, 0, 3, ONE_HOUR);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Verdict.ALLOWED, throttle.check("user_" + i, "10.0.0.1"));
+            throttle.failed("user_" + i, "10.0.0.1");
+        }
+        assertEquals(Verdict.SOURCE_THROTTLED, throttle.check("user_9", "10.0.0.1"));
+        assertEquals(Verdict.ALLOWED, throttle.check("user_9", "10.0.0.2"));
+    }
+
+    @Test
+    void ignoresUnknownSources() {
+        PasswordVerificationThrottle throttle = new PasswordVerificationThrottle(1024, 0, 1, ONE_HOUR);
+        throttle.failed("alice", null);
+        assertEquals(Verdict.ALLOWED, throttle.check("alice", null));
+    }
+
+    @Test
+    void disabledThresholdsNeverRefuse() {
+        PasswordVerificationThrottle throttle = new PasswordVerificationThrottle(1024, 0, 0, ONE_HOUR);
+        for (int i = 0; i < 100; i++) {
+            throttle.failed("alice", "10.0.0.1");
+        }
+        assertEquals(Verdict.ALLOWED, throttle.check("alice", "10.0.0.1"));
+    }
+
+    @Test
+    void decayLiftsARefusal() throws InterruptedException {
+        long halfLifeMillis = 100;
+        PasswordVerificationThrottle throttle = new PasswordVerificationThrottle(1024, 4, 4, halfLifeMillis);
+        // twice the threshold, so that a half-life ending while failing still leaves the user refused
+        for (int i = 0; i < 8; i++) {
+            throttle.failed("alice", "10.0.0.1");
+        }
+        assertEquals(Verdict.USER_THROTTLED, throttle.check("alice", "10.0.0.1"));
+
+        // at least two halvings, which take eight failures below four
+        Thread.sleep(3 * halfLifeMillis);
+
+        assertEquals(Verdict.ALLOWED, throttle.check("alice", "10.0.0.1"));
+    }
+
+    @Test
+    void rejectsANonPositiveHalfLife() {
+        assertThrows(IllegalArgumentException.class, () -> new PasswordVerificationThrottle(1024, 3, 3, 0));
+    }
+}
@@ -0,0 +1,215 @@
+package aziz.keycloak.provider;
+
+import aziz.keycloak.cache.ExternalUserCache;
+import aziz.keycloak.cache.ExternalUserCache.KeyType;
+import aziz.keycloak.cache.MembershipIndex;
+import aziz.keycloak.cache.SeekPositionCache;
+import aziz.keycloak.changefeed.InMemoryUserChangeFeed;
+import aziz.keycloak.changefeed.UserChange;
+import aziz.keycloak.changefeed.UserChangeFeed;
+import aziz.keycloak.domain.ExternalUserEntity;
+import aziz.keycloak.domain.ExternalUserRoleEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.storage.StorageId;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// changes are published through the in-memory feed and delivered synchronously to the factory's listener
+class ExternalDBUserStorageProviderFactoryChangeFeedTest {
+
+    private static final String REALM_ID = "realm";
+
+    private final InMemoryUserChangeFeed feed = new InMemoryUserChangeFeed();
+
+    private final ExternalUserCache userCache = new ExternalUserCache(60_000L, 60_000L, 100, 1024 * 1024);
+
+    private final MembershipIndex membershipIndex = MembershipIndex.create(1024, 0.01, 1024 * 1024, 60_000L);
+
+    private final UserCache keycloakUserCache = mock(UserCache.class);
+
+    private final RealmModel realm = mock(RealmModel.class);
+
+    private final ComponentModel model = new ComponentModel();
+
+    private ExternalDBUserStorageProviderFactory factory;
+
+    private SeekPositionCache seekPositions;
+
+    @BeforeEach
+    void startFeed() {
+        model.setId(UUID.randomUUID().toString());
+        model.setName("external-user-store");
+        model.setParentId(REALM_ID);
+        model.setProviderId(ExternalDBUserStorageProviderFactory.PROVIDER_ID);
+        model.put(ExternalDBUserStorageProviderFactory.CHANGE_FEED_PROPERTY, "postgres");
+        model.put(ExternalDBUserStorageProviderFactory.PAGINATION_MODE_PROPERTY, "keyset");
+
+        KeycloakSession session = mock(KeycloakSession.class);
+        RealmProvider realms = mock(RealmProvider.class);
+        when(session.getTransactionManager()).thenReturn(mock(KeycloakTransactionManager.class));
+        when(session.realms()).thenReturn(realms);
+        when(realms.getRealm(REALM_ID)).thenReturn(realm);
+        when(session.getProvider(UserCache.class)).thenReturn(keycloakUserCache);
+        KeycloakSessionFactory sessionFactory = mock(KeycloakSessionFactory.class);
+        when(sessionFactory.create()).thenReturn(session);
+
+        factory = new ExternalDBUserStorageProviderFactory() {
+            @Override
+            protected UserChangeFeed createChangeFeed(KeycloakSession session, ComponentModel config,
+                                                      ProviderConfig providerConfig) {
+                return feed;
+            }
+        };
+        factory.sessionFactory = sessionFactory;
+        factory.userCaches.put(model.getId(), userCache);
+        factory.membershipIndexes.put(model.getId(), membershipIndex);
+        ProviderConfig providerConfig = factory.getProviderConfig(model);
+        seekPositions = providerConfig.getSeekPositionCache();
+        factory.startChangeFeed(session, model, providerConfig);
+
+        for (int i = 1; i <= 3; i++) {
+            userCache.put(user(i));
+        }
+        seekPositions.record("user", 100, "user_100");
+    }
+
+    @AfterEach
+    void closeFactory() {
+        factory.close();
+    }
+
+    @Test
+    void evictsOnlyTheChangedUser() {
+        feed.publish(new UserChange(id(1), username(1), email(1)));
+
+        assertNull(userCache.get(KeyType.ID, id(1)));
+        assertNull(userCache.get(KeyType.USERNAME, username(1)));
+        assertNull(userCache.get(KeyType.EMAIL, email(1)));
+        assertCached(2);
+        assertCached(3);
+    }
+
+    @Test
+    void evictsTheUserCachedUnderAnOldUsername() {
+        // the username moved to another user, who is reported with the username it had before the change
+        feed.publish(new UserChange(UUID.randomUUID().toString(), username(2), null));
+
+        assertNull(userCache.get(KeyType.USERNAME, username(2)));
+        assertNull(userCache.get(KeyType.ID, id(2)));
+        assertCached(1);
+        assertCached(3);
+    }
+
+    @Test
+    void forgetsMissesOfACreatedUser() {
+        userCache.putMiss(KeyType.USERNAME, username(4));
+        userCache.putMiss(KeyType.USERNAME, username(5));
+        assertEquals(Optional.empty(), userCache.get(KeyType.USERNAME, username(4)));
+
+        feed.publish(new UserChange(id(4), username(4), email(4)));
+
+        assertNull(userCache.get(KeyType.USERNAME, username(4)));
+        assertEquals(Optional.empty(), userCache.get(KeyType.USERNAME, username(5)));
+    }
+
+    @Test
+    void addsACreatedUserToTheMembershipIndex() {
+        assertFalse(membershipIndex.mightContain(username(4)));
+
+        feed.publish(new UserChange(id(4), "User_4", "User_4@myorg.com"));
+
+        assertTrue(membershipIndex.mightContain(username(4)));
+        assertTrue(membershipIndex.mightContain(email(4)));
+        assertFalse(membershipIndex.mightContain(username(5)));
+    }
+
+    @Test
+    void clearsSeekPositions() {
+        assertNotNull(seekPositions.floor("user", 100));
+
+        // a change before any recorded position shifts it, and the feed does not say where the user sorts
+        feed.publish(new UserChange(id(1), username(1), email(1)));
+
+        assertNull(seekPositions.floor("user", 100));
+    }
+
+    @Test
+    void evictsOnlyTheChangedUserFromKeycloaksUserCache() {
+        feed.publish(new UserChange(id(1), username(1), email(1)));
+
+        ArgumentCaptor<UserModel> evicted = ArgumentCaptor.forClass(UserModel.class);
+        verify(keycloakUserCache).evict(eq(realm), evicted.capture());
+        assertEquals(StorageId.keycloakId(model, id(1)), evicted.getValue().getId());
+        assertEquals(username(1), evicted.getValue().getUsername());
+        verify(keycloakUserCache, never()).evict(realm);
+    }
+
+    @Test
+    void allEvictsEveryUser() {
+        userCache.putMiss(KeyType.USERNAME, username(4));
+
+        feed.publish(UserChange.ALL);
+
+        assertEquals(0, userCache.size());
+        assertNull(userCache.get(KeyType.USERNAME, username(4)));
+        assertNull(seekPositions.floor("user", 100));
+        verify(keycloakUserCache).evict(realm);
+        verify(keycloakUserCache, never()).evict(eq(realm), any(UserModel.class));
+    }
+
+    @Test
+    void closedFeedDeliversNothing() {
+        factory.close();
+
+        feed.publish(new UserChange(id(1), username(1), email(1)));
+
+        assertCached(1);
+    }
+
+    private void assertCached(int index) {
+        assertNotNull(userCache.get(KeyType.ID, id(index)));
+        assertNotNull(userCache.get(KeyType.USERNAME, username(index)));
+        assertNotNull(userCache.get(KeyType.EMAIL, email(index)));
+    }
+
+    private static ExternalUserEntity user(int index) {
+        return new ExternalUserEntity(id(index), email(index), username(index),
+                new ExternalUserRoleEntity("role", "customer"), "First_" + index, "Last_" + index, (long) index);
+    }
+
+    private static String id(int index) {
+        return "id_" + index;
+    }
+
+    private static String username(int index) {
+        return "user_" + index;
+    }
+
+    private static String email(int index) {
+        return "user_" + index + "@myorg.com";
+    }
+}
@@ -0,0 +1,159 @@
+package aziz.keycloak.provider;
+
+import aziz.keycloak.routing.ShardRouter;
+import aziz.keycloak.testing.ExternalUserStoreFixture;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// users spread across several in-process databases, each standing in for one shard
+class ExternalDBUserStorageProviderShardTest {
+
+    private static final int SHARDS = 4;
+
+    private static final int USER_COUNT = 200;
+
+    private static ExternalUserStoreFixture fixture;
+
+    // every username, in the order pages are expected to list them
+    private static List<String> sortedUsernames;
+
+    @BeforeAll
+    static void createStore() {
+        fixture = new ExternalUserStoreFixture(USER_COUNT, SHARDS);
+        sortedUsernames = IntStream.range(0, USER_COUNT)
+                .mapToObj(ExternalUserStoreFixture::username)
+                .sorted(ExternalDBUserStorageProvider::compareCodePoints)
+                .toList();
+    }
+
+    @AfterAll
+    static void closeStore() {
+        fixture.close();
+    }
+
+    @Test
+    void usersAreSpreadAcrossEveryShard() {
+        Set<Integer> shards = new HashSet<>();
+        for (int index = 0; index < USER_COUNT; index++) {
+            int shard = ShardRouter.shardOfUsername(ExternalUserStoreFixture.username(index), SHARDS);
+            assertEquals(shard, ShardRouter.shardOfId(fixture.id(index)));
+            assertEquals(shard == 0, !fixture.id(index).startsWith("s"));
+            shards.add(shard);
+        }
+        assertEquals(SHARDS, shards.size());
+    }
+
+    @Test
+    void findsEveryUserByUsernameIdAndEmail() {
+        for (int index = 0; index < USER_COUNT; index++) {
+            String username = ExternalUserStoreFixture.username(index);
+            String id = StorageId.keycloakId(fixture.model(), fixture.id(index));
+            String email = ExternalUserStoreFixture.email(index);
+            UserModel byUsername = fixture.withProvider(provider -> provider.getUserByUsername(fixture.realm(), username));
+            UserModel byId = fixture.withProvider(provider -> provider.getUserById(fixture.realm(), id));
+            UserModel byEmail = fixture.withProvider(provider -> provider.getUserByEmail(fixture.realm(), email));
+            for (UserModel user : new UserModel[]{byUsername, byId, byEmail}) {
+                assertNotNull(user, username);
+                assertEquals(username, user.getUsername());
+                assertEquals(id, user.getId());
+            }
+        }
+    }
+
+    @Test
+    void doesNotFindIdsRoutedToAnotherShard() {
+        int index = firstIndexOnShard(2);
+        String storedId = ShardRouter.untag(fixture.id(index));
+        for (String id : new String[]{storedId, "s1:" + storedId, "s3:" + storedId, "s" + SHARDS + ":" + storedId}) {
+            assertNull(fixture.withProvider(provider ->
+                    provider.getUserById(fixture.realm(), StorageId.keycloakId(fixture.model(), id))), id);
+        }
+    }
+
+    @Test
+    void countsUsersOfEveryShard() {
+        assertEquals(USER_COUNT, (int) fixture.withProvider(provider -> provider.getUsersCount(fixture.realm())));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 7, 20, 64})
+    void pagesThroughMergedShardsInOrder(int pageSize) {
+        List<String> listed = new ArrayList<>();
+        for (int first = 0; first < USER_COUNT + pageSize; first += pageSize) {
+            List<String> page = searchAll(first, pageSize);
+            assertEquals(sortedUsernames.subList(Math.min(first, USER_COUNT), Math.min(first + pageSize, USER_COUNT)), page,
+                    "page at " + first);
+            listed.addAll(page);
+        }
+        assertEquals(sortedUsernames, listed);
+    }
+
+    @Test
+    void pagesStartingWithinAnotherShardsRows() {
+        for (int first : new int[]{3, 99, 100, 101, USER_COUNT - 5}) {
+            assertEquals(sortedUsernames.subList(first, Math.min(first + 20, USER_COUNT)), searchAll(first, 20),
+                    "page at " + first);
+        }
+    }
+
+    @Test
+    void listsEveryUserWithoutMaxResults() {
+        assertEquals(sortedUsernames, searchAll(0, null));
+        assertEquals(sortedUsernames.subList(50, USER_COUNT), searchAll(50, null));
+    }
+
+    @Test
+    void failsOnAShardNotOrderingByTheCCollation() {
+        try (ExternalUserStoreFixture unordered = new ExternalUserStoreFixture(20, SHARDS)) {
+            // H2 orders by UTF-16 unit, which puts a surrogate pair before U+FFFD; the C collation puts it after
+            String replacement = "zz_\uFFFD";
+            String emoji = null;
+            for (int suffix = 0; emoji == null; suffix++) {
+                String candidate = "zz_\uD83D\uDE00" + suffix;
+                if (ShardRouter.shardOfUsername(candidate, SHARDS) == ShardRouter.shardOfUsername(replacement, SHARDS)) {
+                    emoji = candidate;
+                }
+            }
+            unordered.insertUser(replacement, "replacement@myorg.com");
+            unordered.insertUser(emoji, "emoji@myorg.com");
+            assertTrue(ExternalDBUserStorageProvider.compareCodePoints(replacement, emoji) < 0);
+
+            assertThrows(ModelException.class, () -> unordered.withProvider(provider -> provider
+                    .searchForUserStream(unordered.realm(), Map.of(UserModel.SEARCH, "*"), 0, 100)
+                    .toList()));
+        }
+    }
+
+    private static List<String> searchAll(int first, Integer maxResults) {
+        return fixture.withProvider(provider -> provider
+                .searchForUserStream(fixture.realm(), Map.of(UserModel.SEARCH, "*"), first, maxResults)
+                .map(UserModel::getUsername)
+                .toList());
+    }
+
+    private static int firstIndexOnShard(int shard) {
+        return IntStream.range(0, USER_COUNT)
+                .filter(index -> ShardRouter.shardOfId(fixture.id(index)) == shard)
+                .findFirst()
+                .orElseThrow();
+    }
+}
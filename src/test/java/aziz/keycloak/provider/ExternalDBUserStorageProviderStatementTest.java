@@ -0,0 +1,92 @@
+package aziz.keycloak.provider;
+
+import aziz.keycloak.adapter.ExternalUserAdapter;
+import aziz.keycloak.testing.ExternalUserStoreFixture;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// every read path loads users together with their roles, so none may issue a select per role or user
+class ExternalDBUserStorageProviderStatementTest {
+
+    private static ExternalUserStoreFixture fixture;
+
+    @BeforeAll
+    static void createStore() {
+        fixture = new ExternalUserStoreFixture(1000);
+    }
+
+    @AfterAll
+    static void closeStore() {
+        fixture.close();
+    }
+
+    @Test
+    void getUserByUsernameIssuesOneStatement() {
+        assertEquals(1, fixture.countStatements(provider ->
+                provider.getUserByUsername(fixture.realm(), ExternalUserStoreFixture.username(1))));
+    }
+
+    @Test
+    void getUserByEmailIssuesOneStatement() {
+        assertEquals(1, fixture.countStatements(provider ->
+                provider.getUserByEmail(fixture.realm(), ExternalUserStoreFixture.email(2))));
+    }
+
+    @Test
+    void getUserByIdIssuesOneStatement() {
+        assertEquals(1, fixture.countStatements(provider ->
+                provider.getUserById(fixture.realm(), StorageId.keycloakId(fixture.model(), fixture.id(3)))));
+    }
+
+    @Test
+    void searchForUserStreamIssuesOneStatement() {
+        assertEquals(1, fixture.countStatements(provider ->
+                provider.searchForUserStream(fixture.realm(), Map.of(UserModel.SEARCH, "user_1"), 0, 100).toList()));
+    }
+
+    @Test
+    void unpagedSearchReadsOneStatementPerPage() {
+        // the last page is full, so one more statement finds the end of the result
+        long pages = fixture.userCount() / ExternalDBUserStorageProvider.UNPAGED_READ_PAGE_SIZE + 1;
+        assertEquals(pages, fixture.countStatements(provider -> {
+            assertEquals(fixture.userCount(), provider.searchForUserStream(fixture.realm(),
+                    Map.of(UserModel.SEARCH, "*"), 0, null).toList().size());
+            return null;
+        }));
+    }
+
+    @Test
+    void getRoleMembersStreamIssuesOneStatement() {
+        assertEquals(1, fixture.countStatements(provider ->
+                provider.getRoleMembersStream(fixture.realm(), fixture.realmRole("customer"), 0, 100).toList()));
+    }
+
+    @Test
+    void isValidIssuesOneStatement() {
+        UserModel user = fixture.withProvider(provider ->
+                provider.getUserByUsername(fixture.realm(), ExternalUserStoreFixture.username(4)));
+        assertEquals(1, fixture.countStatements(provider -> {
+            assertTrue(provider.isValid(fixture.realm(), user, UserCredentialModel.password(ExternalUserStoreFixture.PASSWORD)));
+            return null;
+        }));
+    }
+
+    @Test
+    void adapterReadsIssueNoStatements() {
+        assertEquals(1, fixture.countStatements(provider -> {
+            ExternalUserAdapter adapter = (ExternalUserAdapter) provider.getUserByUsername(fixture.realm(),
+                    ExternalUserStoreFixture.username(5));
+            adapter.getAttributes();
+            return adapter.getRoleMappingsInternal();
+        }));
+    }
+}
@@ -0,0 +1,58 @@
+package aziz.keycloak.provider;
+
+import aziz.keycloak.mapping.RoleMappingIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProviderConfigTest {
+
+    private static final String REALM_ID = "realm";
+
+    private final KeycloakSession session = mock(KeycloakSession.class);
+
+    private final ComponentModel model = new ComponentModel();
+
+    private ProviderConfig providerConfig;
+
+    private RoleMappingIndex compiled;
+
+    @BeforeEach
+    void compileRoleMappings() {
+        RealmProvider realms = mock(RealmProvider.class);
+        when(session.realms()).thenReturn(realms);
+        when(realms.getRealm(REALM_ID)).thenReturn(mock(RealmModel.class));
+        model.setId("component");
+        model.setParentId(REALM_ID);
+        model.put(ExternalDBUserStorageProviderFactory.ROLE_MAPPINGS_PROPERTY,
+                "[{\"key\":\"admin\",\"value\":\"realm_admin\"},{\"key\":\"customer\",\"value\":\"realm_customer\"}]");
+        providerConfig = ProviderConfig.parse(model);
+        compiled = providerConfig.getRoleMappingIndex(session, model);
+    }
+
+    @Test
+    void keepsTheRoleMappingIndexForUnmappedRoles() {
+        providerConfig.discardRoleMappingIndex(REALM_ID, "realm_developer");
+        assertSame(compiled, providerConfig.getRoleMappingIndex(session, model));
+    }
+
+    @Test
+    void keepsTheRoleMappingIndexForRolesOfOtherRealms() {
+        providerConfig.discardRoleMappingIndex("other", "realm_admin");
+        assertSame(compiled, providerConfig.getRoleMappingIndex(session, model));
+    }
+
+    @Test
+    void recompilesTheRoleMappingIndexForMappedRoles() {
+        providerConfig.discardRoleMappingIndex(REALM_ID, "realm_customer");
+        assertNotSame(compiled, providerConfig.getRoleMappingIndex(session, model));
+    }
+}
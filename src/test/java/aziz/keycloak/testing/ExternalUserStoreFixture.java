@@ -0,0 +1,334 @@
+package aziz.keycloak.testing;
+
+import aziz.keycloak.credential.BCryptPasswordVerifier;
+import aziz.keycloak.credential.PasswordVerificationEngine;
+import aziz.keycloak.mapping.RoleMappingIndex;
+import aziz.keycloak.metrics.ProviderMetrics;
+import aziz.keycloak.provider.ExternalDBUserStorageProvider;
+import aziz.keycloak.provider.ProviderConfig;
+import aziz.keycloak.routing.ShardRouter;
+import aziz.keycloak.search.UserSearchQuery;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import org.h2.jdbcx.JdbcDataSource;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * An in-process external user store: an H2 database seeded with the {@code user_entity}/{@code role_entity}
+ * schema, the provider's {@code user-store} persistence unit bound to it, and stubbed Keycloak session objects.
+ * A sharded store spreads its users across several such databases the way the provider expects them.
+ * Shared by the tests and, through the test jar, by the benchmarks.
+ */
+public class ExternalUserStoreFixture implements AutoCloseable {
+    public static final String[] EXTERNAL_ROLES = {"admin", "customer", "developer", "support"};
+    public static final String PASSWORD = "customer";
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final List<EntityManagerFactory> shardEntityManagerFactories = new ArrayList<>();
+
+    private final List<JdbcDataSource> dataSources = new ArrayList<>();
+
+    // pgcrypto's gen_salt('bf') defaults to cost 6
+    private final String passwordHash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(6));
+
+    private final ExecutorService shardExecutor;
+
+    private final ShardRouter shardRouter;
+
+    private final PasswordVerificationEngine passwordVerificationEngine;
+
+    private final RoleMappingIndex roleMappingIndex;
+
+    private final Map<String, RoleModel> realmRoles = new HashMap<>();
+
+    private final String[] ids;
+
+    private final KeycloakSession session;
+
+    private final RealmModel realm;
+
+    private final ComponentModel model;
+
+    public ExternalUserStoreFixture(int userCount) {
+        this(userCount, 1);
+    }
+
+    /**
+     * @param shards number of databases the users are spread across, each user on the shard of its username
+     */
+    public ExternalUserStoreFixture(int userCount, int shards) {
+        ids = new String[userCount];
+        List<String> persistenceUnits = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:user_store_" + UUID.randomUUID()
+                    + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+            seed(dataSource, shard, shards, ids, passwordHash);
+            dataSources.add(dataSource);
+
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("jakarta.persistence.transactionType", "RESOURCE_LOCAL");
+            properties.put("hibernate.connection.datasource", dataSource);
+            properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+            properties.put("hibernate.show_sql", "false");
+            properties.put("hibernate.generate_statistics", "true");
+            shardEntityManagerFactories.add(Persistence.createEntityManagerFactory("user-store", properties));
+            persistenceUnits.add("user-store-shard-" + shard);
+        }
+        entityManagerFactory = shardEntityManagerFactories.get(0);
+        if (shards > 1) {
+            shardExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+            shardRouter = new ShardRouter(persistenceUnits, shardEntityManagerFactories, shardExecutor);
+        } else {
+            shardExecutor = null;
+            shardRouter = null;
+        }
+
+        passwordVerificationEngine = new PasswordVerificationEngine(new BCryptPasswordVerifier(),
+                Runtime.getRuntime().availableProcessors(), 1024, 30_000L);
+
+        realm = mock(RealmModel.class);
+        Map<String, Set<String>> roleMappings = new HashMap<>();
+        for (String externalRole : EXTERNAL_ROLES) {
+            String realmRoleName = "realm_" + externalRole;
+            String realmRoleId = UUID.randomUUID().toString();
+            RoleModel realmRole = mock(RoleModel.class);
+            when(realmRole.getName()).thenReturn(realmRoleName);
+            when(realmRole.getId()).thenReturn(realmRoleId);
+            when(realm.getRole(realmRoleName)).thenReturn(realmRole);
+            when(realm.getRoleById(realmRoleId)).thenReturn(realmRole);
+            realmRoles.put(realmRoleName, realmRole);
+            roleMappings.put(externalRole, Set.of(realmRoleName));
+        }
+        roleMappingIndex = RoleMappingIndex.compile(roleMappings, realm);
+
+        UserFederatedStorageProvider federatedStorage = mock(UserFederatedStorageProvider.class);
+        when(federatedStorage.getAttributes(any(), anyString())).thenAnswer(invocation -> new MultivaluedHashMap<>());
+        session = mock(KeycloakSession.class);
+        when(session.getProvider(UserFederatedStorageProvider.class)).thenReturn(federatedStorage);
+
+        model = new ComponentModel();
+        model.setId(UUID.randomUUID().toString());
+        model.setName("external-user-store");
+        model.setProviderId("external-user-provider");
+    }
+
+    /**
+     * Creates a provider the way the factory does for each Keycloak session, with its own read-only entity manager.
+     * Closing the provider closes the entity manager.
+     */
+    public ExternalDBUserStorageProvider createProvider() {
+        return createProvider(true);
+    }
+
+    public ExternalDBUserStorageProvider createProvider(boolean readOnly) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        entityManager.unwrap(Session.class).setDefaultReadOnly(readOnly);
+        return new ExternalDBUserStorageProvider(
+                session,
+                model,
+                entityManager,
+                roleMappingIndex,
+                passwordVerificationEngine,
+                null,
+                null,
+                null,
+                UserSearchQuery.SearchMode.TRIGRAM,
+                ProviderConfig.CountMode.EXACT,
+                null,
+                ProviderMetrics.disabled(),
+                null,
+                null,
+                shardRouter,
+                null,
+                ProviderConfig.PasswordCaching.USER_CACHE,
+                null);
+    }
+
+    public <T> T withProvider(Function<ExternalDBUserStorageProvider, T> work) {
+        ExternalDBUserStorageProvider provider = createProvider();
+        try {
+            return work.apply(provider);
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * Runs {@code work} on a fresh provider and returns the number of SQL statements it issued. Statistics are only
+     * collected while counting, so measurements are not affected.
+     */
+    public long countStatements(Function<ExternalDBUserStorageProvider, ?> work) {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        try {
+            withProvider(work);
+            return statistics.getPrepareStatementCount();
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    public RealmModel realm() {
+        return realm;
+    }
+
+    public ComponentModel model() {
+        return model;
+    }
+
+    public RoleMappingIndex roleMappingIndex() {
+        return roleMappingIndex;
+    }
+
+    public RoleModel realmRole(String externalRole) {
+        return realmRoles.get("realm_" + externalRole);
+    }
+
+    public int shards() {
+        return shardEntityManagerFactories.size();
+    }
+
+    public int userCount() {
+        return ids.length;
+    }
+
+    public String id(int index) {
+        return ids[index];
+    }
+
+    public static String username(int index) {
+        return "user_" + index;
+    }
+
+    public static String email(int index) {
+        return "user_" + index + "@myorg.com";
+    }
+
+    /**
+     * Inserts a user with the {@code customer} role on the shard of its username, for usernames the seeded users do
+     * not cover.
+     *
+     * @return the id of the user as the provider reports it
+     */
+    public String insertUser(String username, String email) {
+        int shard = ShardRouter.shardOfUsername(username, shards());
+        String id = UUID.randomUUID().toString();
+        try (Connection connection = dataSources.get(shard).getConnection();
+             PreparedStatement insert = connection.prepareStatement("insert into user_entity " +
+                     "(id, username, email, password, role_id, first_name, last_name, created_at) " +
+                     "select ?, ?, ?, ?, id, ?, ?, ? from role_entity where name = 'customer'")) {
+            insert.setString(1, id);
+            insert.setString(2, username);
+            insert.setString(3, email);
+            insert.setString(4, passwordHash);
+            insert.setString(5, "First");
+            insert.setString(6, "Last");
+            insert.setLong(7, System.currentTimeMillis());
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not insert " + username + " into the external user store", e);
+        }
+        String tag = ShardRouter.tag(shard);
+        return tag == null ? id : tag + id;
+    }
+
+    @Override
+    public void close() {
+        passwordVerificationEngine.close();
+        if (shardExecutor != null) {
+            shardExecutor.shutdownNow();
+        }
+        shardEntityManagerFactories.forEach(EntityManagerFactory::close);
+    }
+
+    // inserts the users placed on the given shard and records their ids as the provider reports them
+    private static void seed(JdbcDataSource dataSource, int shard, int shards, String[] ids, String hash) {
+        String tag = ShardRouter.tag(shard);
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(readSchema());
+            }
+            String[] roleIds = new String[EXTERNAL_ROLES.length];
+            try (PreparedStatement insert = connection.prepareStatement("insert into role_entity (id, name) values (?, ?)")) {
+                for (int i = 0; i < EXTERNAL_ROLES.length; i++) {
+                    roleIds[i] = UUID.randomUUID().toString();
+                    insert.setString(1, roleIds[i]);
+                    insert.setString(2, EXTERNAL_ROLES[i]);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            try (PreparedStatement insert = connection.prepareStatement("insert into user_entity " +
+                    "(id, username, email, password, role_id, first_name, last_name, created_at) " +
+                    "values (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                long now = System.currentTimeMillis();
+                int batched = 0;
+                for (int i = 0; i < ids.length; i++) {
+                    if (ShardRouter.shardOfUsername(username(i), shards) != shard) {
+                        continue;
+                    }
+                    String id = UUID.randomUUID().toString();
+                    ids[i] = tag == null ? id : tag + id;
+                    insert.setString(1, id);
+                    insert.setString(2, username(i));
+                    insert.setString(3, email(i));
+                    insert.setString(4, hash);
+                    insert.setString(5, roleIds[i % roleIds.length]);
+                    insert.setString(6, "First_" + i);
+                    insert.setString(7, "Last_" + i);
+                    insert.setLong(8, now - i);
+                    insert.addBatch();
+                    if (++batched % 1000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not seed the external user store", e);
+        }
+    }
+
+    private static String readSchema() {
+        try (InputStream schema = ExternalUserStoreFixture.class.getResourceAsStream("/external-user-store-schema.sql")) {
+            return new String(schema.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read the external user store schema", e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+-- Mirrors the tables created in scripts/external-db/init-db.sql
+CREATE TABLE role_entity (
+                      id VARCHAR(36) PRIMARY KEY,
+                      name VARCHAR(255) NOT NULL UNIQUE
+);
+
+CREATE TABLE user_entity (
+                             id VARCHAR(36) PRIMARY KEY,
+                             username VARCHAR(255) NOT NULL UNIQUE,
+                             email VARCHAR(255) NOT NULL UNIQUE,
+                             password VARCHAR(255) NOT NULL,
+                             role_id VARCHAR(36) NOT NULL,
+                             first_name VARCHAR(255) NOT NULL,
+                             last_name VARCHAR(255) NOT NULL,
+                             created_at BIGINT,
+                             CONSTRAINT fk_role_entity FOREIGN KEY(role_id) REFERENCES role_entity(id)
+);